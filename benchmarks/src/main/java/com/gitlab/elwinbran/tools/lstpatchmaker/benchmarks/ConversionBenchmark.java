@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker.benchmarks;
+
+import com.gitlab.elwinbran.tools.lstpatchmaker.AddressImage;
+import com.gitlab.elwinbran.tools.lstpatchmaker.Conversion;
+import com.gitlab.elwinbran.tools.lstpatchmaker.IpsWriter;
+import com.gitlab.elwinbran.tools.lstpatchmaker.LstScanner;
+import com.gitlab.elwinbran.tools.lstpatchmaker.ParallelScanner;
+import com.gitlab.elwinbran.tools.lstpatchmaker.Record;
+import com.gitlab.elwinbran.tools.lstpatchmaker.RecordEmitter;
+import com.gitlab.elwinbran.tools.lstpatchmaker.TextDisplay;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures every stage of a conversion on its own and all of them together. 
+ * Run with {@code -prof gc} for the allocation rate, the {@link Counters} 
+ * report the processed lines and bytes per second.
+ * 
+ * @author Elwin Slokker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark
+{
+    @Param({"10000", "200000"})
+    public int lines;
+    
+    @Param({"4", "32"})
+    public int objectWidth;
+    
+    @Param({"0.0", "0.05"})
+    public double outOfOrder;
+    
+    @Param({"0.8"})
+    public double adjacent;
+    
+    @Param({"0.2"})
+    public double comments;
+    
+    private File listing;
+    
+    private File patch;
+    
+    private Map<Integer, byte[]> objects;
+    
+    private AddressImage records;
+    
+    private long listingSize;
+    
+    private long changedBytes;
+    
+    private final TextDisplay ignored = input -> {};
+    
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        listing = File.createTempFile("benchmark", ".lst");
+        patch = File.createTempFile("benchmark", ".ips");
+        new ListingGenerator(lines, objectWidth, outOfOrder, adjacent, comments, 0x1B5L).write(listing);
+        listingSize = listing.length();
+        changedBytes = (long) lines * objectWidth;
+        objects = parse();
+        records = coalesce(objects);
+    }
+    
+    @TearDown(Level.Trial)
+    public void delete()
+    {
+        listing.delete();
+        patch.delete();
+    }
+    
+    /**
+     * Rates of the work done, reported next to the operations per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters
+    {
+        public long lines;
+        
+        public long bytes;
+    }
+    
+    /**
+     * Only the scanner, every change is handed straight to the blackhole.
+     */
+    @Benchmark
+    public void scan(Counters counters, Blackhole blackhole) throws IOException
+    {
+        counters.lines += lines;
+        counters.bytes += listingSize;
+        new LstScanner((offset, data) -> blackhole.consume(offset + data.length)).scan(listing);
+    }
+    
+    @Benchmark
+    public void parallelScan(Counters counters, Blackhole blackhole) throws IOException
+    {
+        counters.lines += lines;
+        counters.bytes += listingSize;
+        new ParallelScanner((offset, data) -> blackhole.consume(offset + data.length)).scan(listing);
+    }
+    
+    /**
+     * The scanner plus collecting every change in a map, mostly boxing 
+     * and hashing.
+     */
+    @Benchmark
+    public Map<Integer, byte[]> scanIntoMap(Counters counters) throws IOException
+    {
+        counters.lines += lines;
+        counters.bytes += listingSize;
+        return parse();
+    }
+    
+    @Benchmark
+    public AddressImage records(Counters counters)
+    {
+        counters.lines += lines;
+        counters.bytes += changedBytes;
+        return coalesce(objects);
+    }
+    
+    @Benchmark
+    public void write(Counters counters) throws IOException
+    {
+        counters.lines += lines;
+        counters.bytes += changedBytes;
+        try(IpsWriter writer = IpsWriter.open(patch))
+        {
+            RecordEmitter emitter = new RecordEmitter(writer);
+            for(Record record : records.runs())
+            {
+                emitter.emit(record);
+            }
+            writer.commit();
+        }
+    }
+    
+    @Benchmark
+    public boolean conversion(Counters counters)
+    {
+        counters.lines += lines;
+        counters.bytes += listingSize;
+        return Conversion.convert(listing, patch, ignored);
+    }
+    
+    private Map<Integer, byte[]> parse() throws IOException
+    {
+        Map<Integer, byte[]> parsed = new HashMap<>();
+        new LstScanner(parsed::put).scan(listing);
+        return parsed;
+    }
+    
+    private static AddressImage coalesce(Map<Integer, byte[]> objects)
+    {
+        AddressImage coalesced = new AddressImage();
+        for(Map.Entry<Integer, byte[]> object : objects.entrySet())
+        {
+            coalesced.add(object.getKey(), object.getValue());
+        }
+        return coalesced;
+    }
+    
+}
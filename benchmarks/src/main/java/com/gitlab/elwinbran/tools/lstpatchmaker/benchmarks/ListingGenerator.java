@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Writes synthetic LST files for the benchmarks. 
+ * The same settings and seed always produce the same file.
+ * 
+ * @author Elwin Slokker
+ */
+public class ListingGenerator
+{
+    private static final int ADDRESS_SPACE = 0x1000000;
+    
+    private static final int EOF_OFFSET = 0x454F46;
+    
+    private static final int MAXIMUM_GAP = 64;
+    
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    
+    private final int lines;
+    
+    private final int objectWidth;
+    
+    private final double outOfOrder;
+    
+    private final double adjacent;
+    
+    private final double comments;
+    
+    private final long seed;
+    
+    /**
+     * 
+     * @param lines amount of LOC/OBJ lines.
+     * @param objectWidth bytes in every OBJ column.
+     * @param outOfOrder fraction of lines swapped with an earlier line.
+     * @param adjacent fraction of lines that continue right after the 
+     * previous change, the others leave a small gap.
+     * @param comments fraction of extra lines without LOC and OBJ.
+     * @param seed seed of the random generator.
+     */
+    public ListingGenerator(int lines, int objectWidth, double outOfOrder, double adjacent, double comments, long seed)
+    {
+        if((long) lines * objectWidth >= ADDRESS_SPACE)
+        {
+            throw new IllegalArgumentException("The changes do not fit in the IPS address space.");
+        }
+        this.lines = lines;
+        this.objectWidth = objectWidth;
+        this.outOfOrder = outOfOrder;
+        this.adjacent = adjacent;
+        this.comments = comments;
+        this.seed = seed;
+    }
+    
+    /**
+     * Arguments: FILE LINES WIDTH OUT_OF_ORDER ADJACENT COMMENTS SEED
+     */
+    public static void main(String[] args) throws IOException
+    {
+        new ListingGenerator(Integer.parseInt(args[1]), Integer.parseInt(args[2]), 
+                Double.parseDouble(args[3]), Double.parseDouble(args[4]), 
+                Double.parseDouble(args[5]), Long.parseLong(args[6]))
+                .write(new File(args[0]));
+    }
+    
+    /**
+     * 
+     * @param destination the LST file to (over)write.
+     * @throws IOException when writing fails.
+     */
+    public void write(File destination) throws IOException
+    {
+        Random random = new Random(seed);
+        int[] offsets = offsets(random);
+        char[] object = new char[objectWidth * 2];
+        try(BufferedWriter writer = Files.newBufferedWriter(destination.toPath(), StandardCharsets.US_ASCII))
+        {
+            for(int line = 0; line < lines; line++)
+            {
+                while(random.nextDouble() < comments)
+                {
+                    writer.write("                    " + (line + 1) + "   ; generated comment, MOV A,#FF");
+                    writer.newLine();
+                }
+                for(int i = 0; i < object.length; i++)
+                {
+                    object[i] = HEX[random.nextInt(HEX.length)];
+                }
+                writer.write(String.format("%06X ", offsets[line]));
+                writer.write(object);
+                writer.write(String.format("   %6d        DB  generated", line + 1));
+                writer.newLine();
+            }
+        }
+    }
+    
+    /**
+     * Places the changes without overlap, then swaps some of them out of 
+     * order.
+     */
+    private int[] offsets(Random random)
+    {
+        int[] offsets = new int[lines];
+        int gapRoom = (ADDRESS_SPACE - 1 - lines * objectWidth) / Math.max(1, lines);
+        int maximumGap = Math.max(1, Math.min(MAXIMUM_GAP, gapRoom));
+        int cursor = 0;
+        for(int line = 0; line < lines; line++)
+        {
+            if(line > 0 && random.nextDouble() >= adjacent && gapRoom > 0)
+            {
+                cursor += 1 + random.nextInt(maximumGap);
+            }
+            if(cursor == EOF_OFFSET)
+            {
+                cursor++;
+            }
+            offsets[line] = cursor;
+            cursor += objectWidth;
+        }
+        for(int line = 1; line < lines; line++)
+        {
+            if(random.nextDouble() < outOfOrder)
+            {
+                int other = random.nextInt(line);
+                int swap = offsets[line];
+                offsets[line] = offsets[other];
+                offsets[other] = swap;
+            }
+        }
+        return offsets;
+    }
+    
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker.maven;
+
+import com.gitlab.elwinbran.tools.lstpatchmaker.BatchConversion;
+import com.gitlab.elwinbran.tools.lstpatchmaker.ConversionCache;
+import com.gitlab.elwinbran.tools.lstpatchmaker.Converter;
+import com.gitlab.elwinbran.tools.lstpatchmaker.GapBridger;
+import com.gitlab.elwinbran.tools.lstpatchmaker.PatchMaker;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Converts the LST files of a build into IPS patches inside the JVM of the 
+ * build, several at once, with the same batch conversion and cache index 
+ * as the commandline. A patch is only made again when its listing, the 
+ * base ROM or the patch itself changed since it was made; the index is 
+ * kept in the output directory.
+ * 
+ * @author Elwin Slokker
+ */
+@Mojo(name = "convert", defaultPhase = LifecyclePhase.PROCESS_RESOURCES, threadSafe = true)
+public class ConvertMojo extends AbstractMojo
+{
+    private static final String IPS_EXTENSION = ".ips";
+    
+    private static final String ANY_DIRECTORY = "**/";
+    
+    private static final String CACHE_FILE = ".lstpatchmaker-cache";
+    
+    /**
+     * Directory searched for listings.
+     */
+    @Parameter(property = "lstpatchmaker.sourceDirectory", defaultValue = "${project.basedir}/src/main/lst")
+    private File sourceDirectory;
+    
+    /**
+     * Glob patterns of the listings, relative to the source directory.
+     */
+    @Parameter
+    private String[] includes = {"**/*.lst"};
+    
+    /**
+     * Directory receiving the patches, laid out like the source directory.
+     */
+    @Parameter(property = "lstpatchmaker.outputDirectory", defaultValue = "${project.build.directory}/ips")
+    private File outputDirectory;
+    
+    /**
+     * ROM used to fill short gaps between changes, leave out to keep all gaps.
+     */
+    @Parameter(property = "lstpatchmaker.baseRom")
+    private File baseRom;
+    
+    /**
+     * Listings converted at the same time, 0 for one per processor.
+     */
+    @Parameter(property = "lstpatchmaker.threads", defaultValue = "0")
+    private int threads;
+    
+    @Parameter(property = "lstpatchmaker.skip", defaultValue = "false")
+    private boolean skip;
+    
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        if(skip)
+        {
+            getLog().info("Skipping the LST conversion.");
+            return;
+        }
+        if(!sourceDirectory.isDirectory())
+        {
+            getLog().info("No LST files, " + sourceDirectory + " does not exist.");
+            return;
+        }
+        List<File> listings;
+        ConversionCache cache;
+        try
+        {
+            listings = listings(sourceDirectory.toPath());
+            PatchMaker maker = new PatchMaker(baseRom == null ? null : GapBridger.open(baseRom));
+            Files.createDirectories(outputDirectory.toPath());
+            cache = new ConversionCache(new File(outputDirectory, CACHE_FILE), converter(maker), 
+                    ConversionCache.DEFAULT_MAXIMUM_ENTRIES, false, ConversionCache.settings(baseRom));
+        }
+        catch(IOException ex)
+        {
+            throw new MojoExecutionException("The LST conversion could not start: " + ex.getMessage(), ex);
+        }
+        try
+        {
+            cache.load();
+        }
+        catch(IOException ex)
+        {
+            getLog().warn("The cache could not be read, converting everything: " + ex.getMessage());
+        }
+        int parallelism = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        BatchConversion.Outcome outcome;
+        try
+        {
+            outcome = BatchConversion.convert(listings, this::patch, parallelism, cache);
+        }
+        catch(IOException ex)
+        {
+            throw new MojoExecutionException("The LST conversion was interrupted.", ex);
+        }
+        finally
+        {
+            try
+            {
+                cache.close();
+            }
+            catch(IOException ex)
+            {
+                getLog().warn("The cache could not be saved, the next build converts everything again: " + ex.getMessage());
+            }
+        }
+        for(String failure : outcome.failures())
+        {
+            getLog().error(failure);
+        }
+        int converted = outcome.converted() - cache.skipped();
+        getLog().info("Converted " + converted + " of " + listings.size() + " LST files, " 
+                + cache.skipped() + " were up to date.");
+        if(outcome.failed() > 0)
+        {
+            throw new MojoFailureException(outcome.failed() + " LST files could not be converted.");
+        }
+    }
+    
+    /**
+     * 
+     * @return a converter that throws nothing but invalid listings, which 
+     * the batch reports.
+     */
+    private static Converter converter(PatchMaker maker)
+    {
+        return (target, destination, processOutput) -> 
+        {
+            try
+            {
+                Files.createDirectories(destination.toPath().getParent());
+                maker.convert(target.toPath(), destination.toPath());
+                return true;
+            }
+            catch(IOException ex)
+            {
+                processOutput.show(ex.getMessage());
+                return false;
+            }
+        };
+    }
+    
+    private List<File> listings(Path directory) throws IOException
+    {
+        FileSystem files = directory.getFileSystem();
+        List<PathMatcher> matchers = new ArrayList<>();
+        for(String include : includes)
+        {
+            matchers.add(files.getPathMatcher("glob:" + include));
+            //'**/' also matches files right in the directory
+            if(include.startsWith(ANY_DIRECTORY))
+            {
+                matchers.add(files.getPathMatcher("glob:" + include.substring(ANY_DIRECTORY.length())));
+            }
+        }
+        try(Stream<Path> paths = Files.walk(directory))
+        {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> matchers.stream().anyMatch(matcher -> matcher.matches(directory.relativize(path))))
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+    }
+    
+    private File patch(File listing)
+    {
+        Path relative = sourceDirectory.toPath().relativize(listing.toPath());
+        String name = relative.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        String base = extension > 0 ? name.substring(0, extension) : name;
+        return outputDirectory.toPath().resolve(relative).resolveSibling(base + IPS_EXTENSION).toFile();
+    }
+    
+}
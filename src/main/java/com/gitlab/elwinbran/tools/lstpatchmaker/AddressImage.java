@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The 24 bit address space of an IPS patch, holding every changed byte at 
+ * its own address. The space is cut into 4KB pages which are only allocated 
+ * once a change lands in them, next to each page a bitmap tells which of 
+ * its bytes were changed. Adding a change and checking it for overlaps 
+ * takes constant time per byte, touching changes are joined simply by 
+ * lying next to each other. The records are found afterwards by scanning 
+ * the bitmaps for runs of changed bytes, so memory stays below 18MB even 
+ * when a listing changes the whole address space.
+ * 
+ * @author Elwin Slokker
+ */
+public class AddressImage implements ChangeSink
+{
+    private static final int PAGE_BITS = 12;
+    
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    
+    private static final int PAGES = IpsWriter.ADDRESS_SPACE >>> PAGE_BITS;
+    
+    private static final int WORD_BITS = 6;
+    
+    private static final int WORDS = PAGE_SIZE >>> WORD_BITS;
+    
+    private final byte[][] pages = new byte[PAGES][];
+    
+    private final long[][] changed = new long[PAGES][];
+    
+    private int changes = 0;
+    
+    /**
+     * The amount of runs, -1 when it has to be counted again.
+     */
+    private int runs = 0;
+    
+    @Override
+    public void change(int offset, byte[] data)
+    {
+        add(offset, data, data.length);
+    }
+    
+    /**
+     * 
+     * @param offset location of the first byte of the change.
+     * @param data the changed bytes, at least one.
+     * @throws RuntimeException when the change overlaps an earlier change 
+     * or runs past the address space.
+     */
+    public void add(int offset, byte[] data)
+    {
+        add(offset, data, data.length);
+    }
+    
+    /**
+     * 
+     * @param record a run of changes, copied into the image.
+     * @throws RuntimeException when the record overlaps an earlier change.
+     */
+    public void add(Record record)
+    {
+        add(record.offset(), record.data(), record.length());
+    }
+    
+    private void add(int offset, byte[] data, int length)
+    {
+        int end = offset + length;
+        if(offset < 0 || end > IpsWriter.ADDRESS_SPACE)
+        {
+            throw new RuntimeException(String.format("The change at 0x%06X runs past the 24 bit offsets of the IPS format.", offset));
+        }
+        for(int address = offset; address < end; address++)
+        {
+            if(isChanged(address))
+            {
+                throw overlap(offset, end, address);
+            }
+        }
+        int from = 0;
+        while(from < length)
+        {
+            int address = offset + from;
+            int page = address >>> PAGE_BITS;
+            if(pages[page] == null)
+            {
+                pages[page] = new byte[PAGE_SIZE];
+                changed[page] = new long[WORDS];
+            }
+            int index = address & PAGE_MASK;
+            int count = Math.min(length - from, PAGE_SIZE - index);
+            System.arraycopy(data, from, pages[page], index, count);
+            long[] bits = changed[page];
+            for(int bit = index; bit < index + count; bit++)
+            {
+                bits[bit >>> WORD_BITS] |= 1L << bit;
+            }
+            from += count;
+        }
+        changes++;
+        runs = -1;
+    }
+    
+    public boolean isEmpty()
+    {
+        return changes == 0;
+    }
+    
+    /**
+     * 
+     * @return the amount of changes added.
+     */
+    public int changes()
+    {
+        return changes;
+    }
+    
+    /**
+     * 
+     * @return the amount of runs of changed bytes, each becomes a record 
+     * unless it holds more than a record can.
+     */
+    public int size()
+    {
+        if(runs < 0)
+        {
+            runs = 0;
+            for(int start = nextChanged(0); start < IpsWriter.ADDRESS_SPACE; start = nextChanged(nextUnchanged(start)))
+            {
+                runs++;
+            }
+        }
+        return runs;
+    }
+    
+    /**
+     * 
+     * @return the amount of changes that were joined to another.
+     */
+    public int merges()
+    {
+        return changes - size();
+    }
+    
+    /**
+     * Every iteration scans the bitmaps anew, each record is a copy that 
+     * can be kept or changed freely. Use {@link #runs()} when the records 
+     * are only read once.
+     * 
+     * @return the runs of changed bytes in ascending offset order.
+     */
+    public Iterable<Record> records()
+    {
+        return () -> new Iterator<Record>()
+        {
+            private int start = nextChanged(0);
+            
+            @Override
+            public boolean hasNext()
+            {
+                return start < IpsWriter.ADDRESS_SPACE;
+            }
+            
+            @Override
+            public Record next()
+            {
+                if(!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                int end = nextUnchanged(start);
+                byte[] data = new byte[end - start];
+                copy(start, end, data);
+                Record record = new Record(start, data);
+                start = nextChanged(end);
+                return record;
+            }
+        };
+    }
+    
+    /**
+     * Like {@link #records()}, but all records of an iteration share one 
+     * buffer that only grows for longer runs. A record is only valid until 
+     * the next one is taken, it must not be kept or changed.
+     * 
+     * @return the runs of changed bytes in ascending offset order.
+     */
+    public Iterable<Record> runs()
+    {
+        return () -> new Iterator<Record>()
+        {
+            private int start = nextChanged(0);
+            
+            private byte[] buffer = new byte[PAGE_SIZE];
+            
+            @Override
+            public boolean hasNext()
+            {
+                return start < IpsWriter.ADDRESS_SPACE;
+            }
+            
+            @Override
+            public Record next()
+            {
+                if(!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                int end = nextUnchanged(start);
+                if(end - start > buffer.length)
+                {
+                    buffer = new byte[Math.max(end - start, buffer.length * 2)];
+                }
+                copy(start, end, buffer);
+                Record record = new Record(start, buffer, end - start);
+                start = nextChanged(end);
+                return record;
+            }
+        };
+    }
+    
+    /**
+     * 
+     * @param address an address of the 24 bit address space.
+     * @return whether a run of changed bytes starts at the address.
+     */
+    public boolean startsRun(int address)
+    {
+        return isChanged(address) && (address == 0 || !isChanged(address - 1));
+    }
+    
+    private boolean isChanged(int address)
+    {
+        long[] bits = changed[address >>> PAGE_BITS];
+        return bits != null && (bits[(address & PAGE_MASK) >>> WORD_BITS] & (1L << address)) != 0;
+    }
+    
+    /**
+     * 
+     * @return the first changed address from the given one on, or the end 
+     * of the address space.
+     */
+    private int nextChanged(int address)
+    {
+        while(address < IpsWriter.ADDRESS_SPACE)
+        {
+            int page = address >>> PAGE_BITS;
+            long[] bits = changed[page];
+            if(bits != null)
+            {
+                int word = (address & PAGE_MASK) >>> WORD_BITS;
+                long current = bits[word] & (-1L << address);
+                while(true)
+                {
+                    if(current != 0)
+                    {
+                        return (page << PAGE_BITS) + (word << WORD_BITS) + Long.numberOfTrailingZeros(current);
+                    }
+                    if(++word == WORDS)
+                    {
+                        break;
+                    }
+                    current = bits[word];
+                }
+            }
+            address = (page + 1) << PAGE_BITS;
+        }
+        return IpsWriter.ADDRESS_SPACE;
+    }
+    
+    /**
+     * 
+     * @return the first unchanged address from the given one on, or the end 
+     * of the address space.
+     */
+    private int nextUnchanged(int address)
+    {
+        while(address < IpsWriter.ADDRESS_SPACE)
+        {
+            int page = address >>> PAGE_BITS;
+            long[] bits = changed[page];
+            if(bits == null)
+            {
+                return address;
+            }
+            int word = (address & PAGE_MASK) >>> WORD_BITS;
+            long current = ~bits[word] & (-1L << address);
+            while(true)
+            {
+                if(current != 0)
+                {
+                    return (page << PAGE_BITS) + (word << WORD_BITS) + Long.numberOfTrailingZeros(current);
+                }
+                if(++word == WORDS)
+                {
+                    break;
+                }
+                current = ~bits[word];
+            }
+            address = (page + 1) << PAGE_BITS;
+        }
+        return IpsWriter.ADDRESS_SPACE;
+    }
+    
+    private void copy(int start, int end, byte[] data)
+    {
+        int address = start;
+        while(address < end)
+        {
+            int index = address & PAGE_MASK;
+            int count = Math.min(end - address, PAGE_SIZE - index);
+            System.arraycopy(pages[address >>> PAGE_BITS], index, data, address - start, count);
+            address += count;
+        }
+    }
+    
+    /**
+     * Reports the whole run of earlier changes the new change runs into.
+     */
+    private RuntimeException overlap(int offset, int end, int address)
+    {
+        int start = address;
+        while(start > 0 && isChanged(start - 1))
+        {
+            start--;
+        }
+        return new RuntimeException(String.format(
+                "The change at 0x%06X up to 0x%06X overlaps the earlier changes at 0x%06X up to 0x%06X.",
+                offset, end - 1, start, nextUnchanged(address) - 1));
+    }
+    
+}
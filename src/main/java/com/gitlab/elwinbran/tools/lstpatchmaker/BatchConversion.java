@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts many LST files at once, each into an IPS file next to it with the 
+ * same name. A failing file is reported and does not stop the others.
+ * 
+ * @author Elwin Slokker
+ */
+public class BatchConversion
+{
+    private static final String LST_EXTENSION = ".lst";
+    
+    private static final String IPS_EXTENSION = ".ips";
+    
+    private static final String GLOB_CHARACTERS = "*?[{";
+    
+    private BatchConversion()
+    {
+    }
+    
+    /**
+     * Converts all LST files found through the given locations.
+     * 
+     * @param locations LST files, directories to search recursively for 
+     * '.lst' files, or glob patterns such as {@code src/**}{@code /*.lst}.
+     * @param converter converts a single listing.
+     * @param processOutput receives the summary of the batch.
+     * @return the amount of listings that failed to convert.
+     * @throws IOException when a directory could not be searched.
+     */
+    public static int convert(List<String> locations, Converter converter, TextDisplay processOutput) throws IOException
+    {
+        List<File> targets = targets(locations);
+        if(targets.isEmpty())
+        {
+            processOutput.show("No LST files were found.");
+            return 0;
+        }
+        Outcome outcome = convert(targets, BatchConversion::destination, Runtime.getRuntime().availableProcessors(), converter);
+        StringBuilder summary = new StringBuilder();
+        summary.append("Converted ").append(outcome.converted()).append(" of ").append(targets.size()).append(" LST files.");
+        for(String failure : outcome.failures())
+        {
+            summary.append(System.lineSeparator()).append(failure);
+        }
+        processOutput.show(summary.toString());
+        return outcome.failed();
+    }
+    
+    /**
+     * Converts the listings several at once. A failing listing is reported 
+     * and does not stop the others.
+     * 
+     * @param targets the LST files to convert.
+     * @param destinations gives the IPS file of every LST file.
+     * @param threads the most listings converted at the same time.
+     * @param converter converts a single listing, from several threads.
+     * @return how many listings were converted and why the others were not.
+     * @throws IOException when the calling thread was interrupted, it is 
+     * interrupted again.
+     */
+    public static Outcome convert(List<File> targets, Function<File, File> destinations, int threads, Converter converter) throws IOException
+    {
+        CollectingTextDisplay failures = new CollectingTextDisplay();
+        AtomicInteger converted = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(targets.size(), threads)));
+        try
+        {
+            for(File target : targets)
+            {
+                pool.execute(() -> convert(target, destinations.apply(target), converter, converted, failures));
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        try
+        {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch(InterruptedException ex)
+        {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new IOException("The batch conversion was interrupted.", ex);
+        }
+        List<String> messages = failures.texts();
+        Collections.sort(messages);
+        return new Outcome(converted.get(), targets.size() - converted.get(), messages);
+    }
+    
+    /**
+     * 
+     * @param target a LST file.
+     * @return the IPS file belonging to the target.
+     */
+    public static File destination(File target)
+    {
+        String name = target.getName();
+        int extension = name.lastIndexOf('.');
+        String base = extension > 0 ? name.substring(0, extension) : name;
+        return new File(target.getParentFile(), base + IPS_EXTENSION);
+    }
+    
+    private static void convert(File target, File destination, Converter converter, AtomicInteger converted, TextDisplay failures)
+    {
+        TextDisplay fileOutput = input -> failures.show(target + ": " + input);
+        try
+        {
+            if(converter.convert(target, destination, fileOutput))
+            {
+                converted.incrementAndGet();
+            }
+        }
+        catch(RuntimeException ex)
+        {
+            fileOutput.show(ex.getMessage());
+        }
+    }
+    
+    /**
+     * 
+     * @param locations LST files, directories or glob patterns.
+     * @return all LST files found, sorted and without duplicates.
+     * @throws IOException when a directory could not be searched.
+     */
+    static List<File> targets(List<String> locations) throws IOException
+    {
+        Set<Path> found = new TreeSet<>();
+        for(String location : locations)
+        {
+            Path path = Paths.get(location);
+            if(isGlob(location))
+            {
+                found.addAll(glob(location));
+            }
+            else if(Files.isDirectory(path))
+            {
+                try(Stream<Path> walk = Files.walk(path))
+                {
+                    found.addAll(walk.filter(BatchConversion::isListing).collect(Collectors.toList()));
+                }
+            }
+            else
+            {
+                found.add(path);
+            }
+        }
+        List<File> targets = new ArrayList<>(found.size());
+        for(Path path : found)
+        {
+            targets.add(path.toFile());
+        }
+        return targets;
+    }
+    
+    /**
+     * Walks from the deepest directory in front of the first glob character.
+     */
+    private static List<Path> glob(String pattern) throws IOException
+    {
+        String normalized = pattern.replace(File.separatorChar, '/');
+        int firstGlob = normalized.length();
+        for(char character : GLOB_CHARACTERS.toCharArray())
+        {
+            int index = normalized.indexOf(character);
+            if(index >= 0 && index < firstGlob)
+            {
+                firstGlob = index;
+            }
+        }
+        int baseEnd = normalized.lastIndexOf('/', firstGlob);
+        Path base = baseEnd < 0 ? Paths.get("") : Paths.get(normalized.substring(0, baseEnd + 1));
+        if(!Files.isDirectory(base))
+        {
+            return Collections.emptyList();
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized);
+        try(Stream<Path> walk = Files.walk(base))
+        {
+            return walk.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(path))
+                    .collect(Collectors.toList());
+        }
+    }
+    
+    static boolean isGlob(String location)
+    {
+        for(char character : GLOB_CHARACTERS.toCharArray())
+        {
+            if(location.indexOf(character) >= 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    static boolean isListing(Path path)
+    {
+        return Files.isRegularFile(path) && path.getFileName().toString().toLowerCase().endsWith(LST_EXTENSION);
+    }
+    
+    /**
+     * The result of converting a batch of listings.
+     */
+    public static class Outcome
+    {
+        private final int converted;
+        
+        private final int failed;
+        
+        private final List<String> failures;
+        
+        private Outcome(int converted, int failed, List<String> failures)
+        {
+            this.converted = converted;
+            this.failed = failed;
+            this.failures = Collections.unmodifiableList(failures);
+        }
+        
+        /**
+         * 
+         * @return the amount of listings whose patch is in place.
+         */
+        public int converted()
+        {
+            return converted;
+        }
+        
+        /**
+         * 
+         * @return the amount of listings without a patch.
+         */
+        public int failed()
+        {
+            return failed;
+        }
+        
+        /**
+         * 
+         * @return every reason given for a failure, each starting with its 
+         * LST file, sorted.
+         */
+        public List<String> failures()
+        {
+            return failures;
+        }
+    }
+    
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps every shown text, can be shared between threads.
+ * 
+ * @author Elwin Slokker
+ */
+public class CollectingTextDisplay implements TextDisplay
+{
+    
+    private final List<String> texts = new ArrayList<>();
+    
+    @Override
+    public synchronized void show(String input)
+    {
+        texts.add(input);
+    }
+    
+    /**
+     * 
+     * @return a copy of all texts shown so far, in the order they arrived.
+     */
+    public synchronized List<String> texts()
+    {
+        return new ArrayList<>(texts);
+    }
+    
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Headless entry point of the tool. 
+ * Converts straight away when given arguments and only loads JavaFX, 
+ * through {@link Program}, when started without any.
+ * 
+ * @author Elwin Slokker
+ */
+public class CommandLine
+{
+    private static final String HELP_OPTION = "-h";
+    
+    private static final String HELP_ARGUMENT = "help";
+    
+    private static final String BATCH_OPTION = "-b";
+    
+    private static final String WATCH_OPTION = "-w";
+    
+    private static final String OVERLAY_OPTION = "-o";
+    
+    private static final String APPLY_OPTION = "-a";
+    
+    private static final String CACHE_OPTION = "-c";
+    
+    private static final String CACHE_SIZE_OPTION = "-m";
+    
+    private static final String REBUILD_OPTION = "-r";
+    
+    private static final String METRICS_OPTION = "-j";
+    
+    private static final String BRIDGE_OPTION = "-g";
+    
+    private static final String STANDARD_STREAM = "-";
+    
+    private CommandLine()
+    {
+    }
+    
+    public static void main(String[] args)
+    {
+        if(args.length == 0)
+        {
+            dialogue(args);
+            return;
+        }
+        int status = run(args);
+        if(status != 0)
+        {
+            System.exit(status);
+        }
+    }
+    
+    /**
+     * 
+     * @param arguments the commandline arguments, at least one.
+     * @return the exit status, 0 when successful.
+     */
+    public static int run(String[] arguments)
+    {
+        //when the patch takes the output stream, nothing else may be written to it
+        boolean patchOutput = arguments[arguments.length - 1].equals(STANDARD_STREAM);
+        TextDisplay processOutput = new PrintStreamTextDisplay(patchOutput ? System.err : System.out);
+        if (arguments[0].equals(HELP_OPTION) || arguments[0].equalsIgnoreCase(HELP_ARGUMENT))
+        {
+            //help messages
+            System.out.println("Use the LST conversion tool by either providing a TARGET and DESTINATION file paths, " 
+                    + STANDARD_STREAM + " reads the TARGET from the input stream or writes the DESTINATION to the output stream...");
+            System.out.println("Or convert many files at once with " + BATCH_OPTION + " followed by LST files, directories or glob patterns...");
+            System.out.println("Or keep converting them whenever they change with " + WATCH_OPTION + " followed by LST files, directories or glob patterns...");
+            System.out.println("Or combine several LST files into one patch with " + OVERLAY_OPTION + " DESTINATION followed by the LST files...");
+            System.out.println("Or apply a patch with " + APPLY_OPTION + " BASE PATCH OUTPUT, followed by the LST file of the patch to verify the output against it...");
+            System.out.println("Or simply run the tool WITHOUT arguments to start a JavaFX selection dialogue.");
+            System.out.println("Put " + CACHE_OPTION + " INDEX in front to skip unchanged LST files, " 
+                    + CACHE_SIZE_OPTION + " COUNT to limit the remembered patches (default " + ConversionCache.DEFAULT_MAXIMUM_ENTRIES + ") and " 
+                    + REBUILD_OPTION + " to convert everything regardless.");
+            System.out.println("Put " + METRICS_OPTION + " FILE in front to append the timings and counters of every conversion to FILE as JSON lines, " 
+                    + STANDARD_STREAM + " writes them to the error stream.");
+            System.out.println("Put " + BRIDGE_OPTION + " BASE in front to fill short gaps between changes with the bytes of the BASE ROM wherever that makes the patch smaller, except when applying.");
+            return 0;
+        }
+        //options
+        int index = 0;
+        File cacheIndex = null;
+        int cacheSize = ConversionCache.DEFAULT_MAXIMUM_ENTRIES;
+        boolean rebuild = false;
+        String metricsFile = null;
+        File base = null;
+        try
+        {
+            for(; index < arguments.length; index++)
+            {
+                if(arguments[index].equals(CACHE_OPTION))
+                {
+                    cacheIndex = new File(arguments[++index]);
+                }
+                else if(arguments[index].equals(CACHE_SIZE_OPTION))
+                {
+                    cacheSize = Integer.parseInt(arguments[++index]);
+                }
+                else if(arguments[index].equals(REBUILD_OPTION))
+                {
+                    rebuild = true;
+                }
+                else if(arguments[index].equals(METRICS_OPTION))
+                {
+                    metricsFile = arguments[++index];
+                }
+                else if(arguments[index].equals(BRIDGE_OPTION))
+                {
+                    base = new File(arguments[++index]);
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+        catch(ArrayIndexOutOfBoundsException | NumberFormatException ex)
+        {
+            processOutput.show("The option " + arguments[index - 1] + " needs a value, use " + HELP_OPTION + " for help.");
+            return 2;
+        }
+        if(index == arguments.length)
+        {
+            processOutput.show("Expected a TARGET and DESTINATION file path, use " + HELP_OPTION + " for help.");
+            return 2;
+        }
+        String[] remaining = Arrays.copyOfRange(arguments, index, arguments.length);
+        if(base != null && remaining[0].equals(APPLY_OPTION))
+        {
+            processOutput.show("The option " + BRIDGE_OPTION + " does not apply to " + APPLY_OPTION + ", the patch is applied as it is.");
+            return 2;
+        }
+        if(cacheIndex != null && remaining[0].equals(OVERLAY_OPTION))
+        {
+            processOutput.show("The option " + CACHE_OPTION + " does not apply to " + OVERLAY_OPTION + ", the listings are always combined again.");
+            return 2;
+        }
+        ConversionCache cache = null;
+        GapBridger bridger = null;
+        String settings = null;
+        try
+        {
+            if(base != null)
+            {
+                bridger = GapBridger.open(base);
+            }
+            if(cacheIndex != null)
+            {
+                settings = ConversionCache.settings(base);
+            }
+        }
+        catch(IOException ex)
+        {
+            processOutput.show("The base ROM could not be read: " + ex.getMessage());
+            return 1;
+        }
+        if(remaining.length == 2 && (remaining[0].equals(STANDARD_STREAM) || remaining[1].equals(STANDARD_STREAM)))
+        {
+            return pipe(remaining[0], remaining[1], bridger);
+        }
+        //a watched listing is rewritten while it may be read, a mapping would lock it or fault
+        boolean mapped = !remaining[0].equals(WATCH_OPTION);
+        Converter converter = converter(bridger, null, mapped);
+        PrintStream metricsOutput = null;
+        TextDisplay metricsDisplay = null;
+        if(metricsFile != null)
+        {
+            try
+            {
+                metricsOutput = metricsFile.equals(STANDARD_STREAM) ? System.err : new PrintStream(new FileOutputStream(metricsFile, true), true, "UTF-8");
+            }
+            catch(IOException ex)
+            {
+                processOutput.show("The metrics file could not be opened: " + ex.getMessage());
+                return 1;
+            }
+            metricsDisplay = new PrintStreamTextDisplay(metricsOutput);
+            converter = converter(bridger, metricsDisplay, mapped);
+        }
+        if(cacheIndex != null)
+        {
+            cache = new ConversionCache(cacheIndex, converter, cacheSize, rebuild, settings);
+            try
+            {
+                cache.load();
+            }
+            catch(IOException ex)
+            {
+                processOutput.show("The cache could not be read, converting everything: " + ex.getMessage());
+                processOutput.show(System.lineSeparator());
+            }
+            converter = cache;
+        }
+        try
+        {
+            //overlay route, the converter works on single listings
+            if(remaining[0].equals(OVERLAY_OPTION))
+            {
+                return overlay(remaining, bridger, metricsDisplay, processOutput);
+            }
+            return run(remaining, converter, processOutput);
+        }
+        finally
+        {
+            if(metricsOutput != null && metricsOutput != System.err)
+            {
+                metricsOutput.close();
+            }
+            if(cache != null)
+            {
+                if(cache.skipped() > 0)
+                {
+                    processOutput.show("Skipped " + cache.skipped() + " unchanged LST files.");
+                    processOutput.show(System.lineSeparator());
+                }
+                try
+                {
+                    cache.close();
+                }
+                catch(IOException ex)
+                {
+                    processOutput.show("The cache could not be saved: " + ex.getMessage());
+                    processOutput.show(System.lineSeparator());
+                }
+            }
+        }
+    }
+    
+    private static int run(String[] arguments, Converter converter, TextDisplay processOutput)
+    {
+        if(arguments[0].equals(BATCH_OPTION))
+        {
+            //batch route
+            try
+            {
+                int failed = BatchConversion.convert(Arrays.asList(arguments).subList(1, arguments.length), converter, processOutput);
+                processOutput.show(System.lineSeparator());
+                return failed == 0 ? 0 : 1;
+            }
+            catch(IOException ex)
+            {
+                processOutput.show("Batch conversion failed! " + ex.getMessage());
+                return 1;
+            }
+        }
+        if(arguments[0].equals(WATCH_OPTION))
+        {
+            //watch route, runs until stopped
+            try
+            {
+                new WatchConversion(Arrays.asList(arguments).subList(1, arguments.length), converter, processOutput).watch();
+                return 0;
+            }
+            catch(IOException ex)
+            {
+                processOutput.show("Watching failed! " + ex.getMessage());
+                return 1;
+            }
+        }
+        if(arguments[0].equals(APPLY_OPTION))
+        {
+            //apply and verify route
+            if(arguments.length != 4 && arguments.length != 5)
+            {
+                processOutput.show("Expected a BASE, PATCH and OUTPUT file path and optionally a LST file, use " + HELP_OPTION + " for help.");
+                return 2;
+            }
+            return apply(arguments, processOutput);
+        }
+        if(arguments.length != 2)
+        {
+            processOutput.show("Expected a TARGET and DESTINATION file path, use " + HELP_OPTION + " for help.");
+            return 2;
+        }
+        //commandline route
+        File target = new File(arguments[0]);
+        File destination = new File(arguments[1]);
+        try
+        {
+            return converter.convert(target, destination, processOutput) ? 0 : 1;
+        }
+        catch(RuntimeException ex)
+        {
+            processOutput.show("Conversion failed! " + ex.getMessage());
+            return 1;
+        }
+    }
+    
+    /**
+     * 
+     * @param bridger fills short gaps with the base ROM, null to leave them.
+     * @param metricsOutput receives a JSON line for the combined patch, null 
+     * to drop the metrics.
+     * @return the exit code.
+     */
+    private static int overlay(String[] arguments, GapBridger bridger, TextDisplay metricsOutput, TextDisplay processOutput)
+    {
+        if(arguments.length < 3)
+        {
+            processOutput.show("Expected a DESTINATION and one or more TARGET file paths, use " + HELP_OPTION + " for help.");
+            return 2;
+        }
+        List<File> targets = new ArrayList<>();
+        for(String target : Arrays.asList(arguments).subList(2, arguments.length))
+        {
+            targets.add(new File(target));
+        }
+        File destination = new File(arguments[1]);
+        ConversionMetrics metrics = new ConversionMetrics(targets, destination);
+        try
+        {
+            return OverlayConversion.convert(targets, destination, bridger, processOutput, metrics) ? 0 : 1;
+        }
+        finally
+        {
+            if(metricsOutput != null)
+            {
+                metricsOutput.show(metrics.toJson() + System.lineSeparator());
+            }
+        }
+    }
+    
+    private static int apply(String[] arguments, TextDisplay processOutput)
+    {
+        File output = new File(arguments[3]);
+        try
+        {
+            IpsApplier.apply(new File(arguments[1]), new File(arguments[2]), output);
+            if(arguments.length == 4)
+            {
+                return 0;
+            }
+            List<String> mismatches = IpsApplier.verify(new File(arguments[4]), output);
+            if(mismatches.isEmpty())
+            {
+                processOutput.show("The output holds every change of the LST file.");
+                processOutput.show(System.lineSeparator());
+                return 0;
+            }
+            processOutput.show("Verification failed! " + String.join(System.lineSeparator(), mismatches));
+            processOutput.show(System.lineSeparator());
+            return 1;
+        }
+        catch(IOException | RuntimeException ex)
+        {
+            processOutput.show("Applying failed! " + ex.getMessage());
+            return 1;
+        }
+    }
+    
+    /**
+     * Converts from the input stream and/or to the output stream, so the 
+     * tool can sit in a pipeline. The output stream only ever carries the 
+     * patch, failures go to the error stream. The listing is read completely 
+     * before the first byte of the patch is written.
+     * 
+     * @param target LST file path or {@value #STANDARD_STREAM}.
+     * @param destination IPS file path or {@value #STANDARD_STREAM}.
+     * @param bridger fills short gaps with the base ROM, null to leave them.
+     * @return the exit code.
+     */
+    private static int pipe(String target, String destination, GapBridger bridger)
+    {
+        TextDisplay errorOutput = new PrintStreamTextDisplay(System.err);
+        PatchMaker maker = new PatchMaker(bridger);
+        //the standard streams stay open
+        FileChannel input = new FileInputStream(FileDescriptor.in).getChannel();
+        FileChannel output = new FileOutputStream(FileDescriptor.out).getChannel();
+        try
+        {
+            if(!target.equals(STANDARD_STREAM))
+            {
+                maker.convert(new File(target).toPath(), output);
+            }
+            else if(!destination.equals(STANDARD_STREAM))
+            {
+                maker.convert(input, new File(destination).toPath());
+            }
+            else
+            {
+                maker.convert(input, output);
+            }
+            return 0;
+        }
+        catch(IOException | RuntimeException ex)
+        {
+            errorOutput.show("Conversion failed! " + ex.getMessage() + System.lineSeparator());
+            return 1;
+        }
+    }
+    
+    /**
+     * 
+     * @param bridger fills short gaps with the base ROM, null to leave them.
+     * @param metricsOutput receives a JSON line for every conversion, null 
+     * to drop the metrics.
+     * @param mapped whether the LST files are memory mapped rather than read 
+     * into memory.
+     * @return a converter using the given options.
+     */
+    private static Converter converter(GapBridger bridger, TextDisplay metricsOutput, boolean mapped)
+    {
+        return (target, destination, processOutput) -> 
+        {
+            ConversionMetrics metrics = new ConversionMetrics(target, destination);
+            try
+            {
+                return Conversion.convert(target, destination, bridger, processOutput, metrics, mapped);
+            }
+            finally
+            {
+                if(metricsOutput != null)
+                {
+                    metricsOutput.show(metrics.toJson() + System.lineSeparator());
+                }
+            }
+        };
+    }
+    
+    /**
+     * {@link Program}, and with it the JavaFX toolkit, is resolved only 
+     * when this method runs.
+     */
+    private static void dialogue(String[] args)
+    {
+        try
+        {
+            Program.main(args);
+        }
+        catch(NoClassDefFoundError ex)
+        {
+            System.err.println("JavaFX is not available, provide a TARGET and DESTINATION file path instead.");
+            System.exit(1);
+        }
+    }
+    
+}
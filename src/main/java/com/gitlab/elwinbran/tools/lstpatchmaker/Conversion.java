@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The LST to IPS conversion itself, free of any JavaFX classes so the 
+ * commandline route never has to load the toolkit.
+ * 
+ * @author Elwin Slokker
+ */
+public class Conversion
+{
+    public static final String STREAM_STAGE = "stream";
+    
+    public static final String SCAN_STAGE = "scan";
+    
+    public static final String COALESCE_STAGE = "coalesce";
+    
+    public static final String BRIDGE_STAGE = "bridge";
+    
+    public static final String WRITE_STAGE = "write";
+    
+    private Conversion()
+    {
+    }
+    
+    /**
+     * Converts a LST file into an IPS patch.
+     * 
+     * @param target the LST file to read.
+     * @param destination the IPS file to (over)write.
+     * @param processOutput receives the reason when the conversion fails.
+     * @return whether the patch was written.
+     * @throws RuntimeException when the LST file is invalid or unreadable.
+     */
+    public static boolean convert(File target, File destination, TextDisplay processOutput)
+    {
+        return convert(target, destination, processOutput, new ConversionMetrics(target, destination));
+    }
+    
+    /**
+     * Converts a LST file into an IPS patch and measures how that went.
+     * 
+     * @param target the LST file to read.
+     * @param destination the IPS file to (over)write.
+     * @param processOutput receives the reason when the conversion fails.
+     * @param metrics receives the timings and counters of the conversion.
+     * @return whether the patch was written.
+     * @throws RuntimeException when the LST file is invalid or unreadable.
+     */
+    public static boolean convert(File target, File destination, TextDisplay processOutput, ConversionMetrics metrics)
+    {
+        return convert(target, destination, null, processOutput, metrics);
+    }
+    
+    /**
+     * Converts a LST file into an IPS patch, short gaps between the changes 
+     * are filled with the bytes of the base ROM when that makes the patch 
+     * smaller. Bridging needs all changes in memory, so the listing is never 
+     * streamed.
+     * 
+     * @param target the LST file to read.
+     * @param destination the IPS file to (over)write.
+     * @param bridger reads the base ROM, null to leave all gaps as they are.
+     * @param processOutput receives the reason when the conversion fails.
+     * @param metrics receives the timings and counters of the conversion.
+     * @return whether the patch was written.
+     * @throws RuntimeException when the LST file is invalid or unreadable.
+     */
+    public static boolean convert(File target, File destination, GapBridger bridger, TextDisplay processOutput, ConversionMetrics metrics)
+    {
+        return convert(target, destination, bridger, processOutput, metrics, true);
+    }
+    
+    /**
+     * 
+     * @param target the LST file to read.
+     * @param destination the IPS file to (over)write.
+     * @param bridger reads the base ROM, null to leave all gaps as they are.
+     * @param processOutput receives the reason when the conversion fails.
+     * @param metrics receives the timings and counters of the conversion.
+     * @param mapped whether the LST file is memory mapped, otherwise it is 
+     * read into memory first and let go of before converting; for listings 
+     * that other processes may rewrite at any moment.
+     * @return whether the patch was written.
+     * @throws RuntimeException when the LST file is invalid.
+     */
+    public static boolean convert(File target, File destination, GapBridger bridger, TextDisplay processOutput, ConversionMetrics metrics, boolean mapped)
+    {
+        boolean successful = false;
+        metrics.begin();
+        try
+        {
+            //checked up front, the writer below reports its own missing files
+            if(!target.isFile() || !target.canRead())
+            {
+                processOutput.show("Conversion failed! The LST file could not be read: " + target);
+                return false;
+            }
+            ByteBuffer listing;
+            try
+            {
+                listing = mapped ? LstScanner.map(target) : LstScanner.read(target);
+            }
+            catch(IOException ex)
+            {
+                processOutput.show("Conversion failed! The LST file could not be read: " + ex.getMessage());
+                return false;
+            }
+            if(bridger != null)
+            {
+                successful = sorted(listing, destination, bridger, processOutput, metrics);
+                return successful;
+            }
+            try
+            {
+                successful = stream(listing, destination, processOutput, metrics);
+            }
+            catch(Fallback fallback)
+            {
+                successful = sorted(listing, destination, null, processOutput, metrics);
+            }
+            return successful;
+        }
+        finally
+        {
+            metrics.end(successful);
+        }
+    }
+    
+    /**
+     * The streaming step, most listings are already sorted.
+     * 
+     * @throws Fallback when the listing turned out not to be sorted, or a 
+     * record would start at {@link IpsWriter#EOF_OFFSET}; a later change 
+     * may still extend that record backwards.
+     */
+    private static boolean stream(ByteBuffer listing, File destination, TextDisplay processOutput, ConversionMetrics metrics)
+    {
+        try(IpsWriter patchWriter = IpsWriter.open(destination))
+        {
+            RecordEmitter emitter = new RecordEmitter(patchWriter, metrics.progress());
+            StreamingCoalescer stream = new StreamingCoalescer(emitter);
+            long start = System.nanoTime();
+            boolean streamed = stream.stream(listing, metrics.progress());
+            metrics.stage(STREAM_STAGE, System.nanoTime() - start);
+            if(streamed)
+            {
+                if(stream.changes() == 0)
+                {
+                    processOutput.show("The target file did not contain any offset changes, deleting new IPS file.");
+                    destination.delete();
+                    return false;
+                }
+                metrics.progress().finishing();
+                patchWriter.commit();
+                metrics.streamed(stream, emitter, patchWriter);
+                return true;
+            }
+        } catch (FileNotFoundException ex) {
+            processOutput.show("Conversion failed! The IPS file could not be found anymore: " + ex.getMessage());
+            return false;
+        } catch (IOException ex) {
+            processOutput.show("Conversion failed! Something happened during writing the patch: " + ex.getMessage());
+            destination.delete();
+            return false;
+        }
+        metrics.progress().restarted();
+        throw Fallback.INSTANCE;
+    }
+    
+    /**
+     * The fallback for listings with changes out of order, holds all 
+     * changes in memory.
+     */
+    private static boolean sorted(ByteBuffer listing, File destination, GapBridger bridger, TextDisplay processOutput, ConversionMetrics metrics)
+    {
+        //scan the changes into the image
+        long start = System.nanoTime();
+        AddressImage image = image(listing, metrics);
+        metrics.stage(SCAN_STAGE, System.nanoTime() - start);
+        if(image.isEmpty())
+        {
+            processOutput.show("The target file did not contain any offset changes, deleting new IPS file.");
+            destination.delete();
+            return false;
+        }
+        //find the runs of changes
+        start = System.nanoTime();
+        metrics.coalesced(image);
+        metrics.stage(COALESCE_STAGE, System.nanoTime() - start);
+        Iterable<Record> patch = image.runs();
+        if(bridger != null)
+        {
+            start = System.nanoTime();
+            patch = bridger.bridge(image.records(), metrics);
+            metrics.stage(BRIDGE_STAGE, System.nanoTime() - start);
+        }
+        //apply map to IPS file step
+        start = System.nanoTime();
+        boolean written = write(patch, destination, processOutput, metrics);
+        metrics.stage(WRITE_STAGE, System.nanoTime() - start);
+        return written;
+    }
+    
+    /**
+     * Writes sorted, non-overlapping records as a patch.
+     * 
+     * @param records the records in ascending offset order.
+     * @param destination the IPS file to (over)write.
+     * @param processOutput receives the reason when writing fails.
+     * @param metrics receives the counters of the writing.
+     * @return whether the patch was written.
+     */
+    static boolean write(Iterable<Record> records, File destination, TextDisplay processOutput, ConversionMetrics metrics)
+    {
+        try(IpsWriter patchWriter = IpsWriter.open(destination))
+        {
+            RecordEmitter emitter = new RecordEmitter(patchWriter, metrics.progress());
+            for(Record record : records)
+            {
+                //----Exception, when offset = EOF
+                if (record.offset() == IpsWriter.EOF_OFFSET)
+                {
+                    processOutput.show("Conversion failed! The source file contained a change for offset 0x454F46, which is incompatible with IPS.");
+                    destination.delete();
+                    return false;
+                }
+                emitter.emit(record);
+            }
+            metrics.progress().finishing();
+            patchWriter.commit();
+            metrics.records(emitter, patchWriter);
+            return true;
+        } catch (FileNotFoundException ex) {
+            processOutput.show("Conversion failed! The IPS file could not be found anymore: " + ex.getMessage());
+            return false;
+        } catch (IOException ex) {
+            processOutput.show("Conversion failed! Something happened during writing the patch: " + ex.getMessage());
+            destination.delete();
+            return false;
+        }
+    }
+    
+    static AddressImage image(ByteBuffer listing, ConversionMetrics metrics)
+    {
+        AddressImage image = new AddressImage();
+        ParallelScanner scanner = new ParallelScanner(image, metrics.progress());
+        scanner.scan(listing);
+        metrics.scanned(scanner.lines(), image.changes());
+        return image;
+    }
+    
+    /**
+     * Scans a whole LST file into memory.
+     * 
+     * @param target the LST file to read.
+     * @return all changes of the file.
+     * @throws IOException when the file cannot be read.
+     * @throws RuntimeException when the LST file is invalid.
+     */
+    static AddressImage image(File target) throws IOException
+    {
+        AddressImage image = new AddressImage();
+        new ParallelScanner(image).scan(target);
+        return image;
+    }
+    
+    /**
+     * Signals that the listing has to be converted in memory, carries no 
+     * stack trace.
+     */
+    private static class Fallback extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private static final Fallback INSTANCE = new Fallback();
+        
+        private Fallback()
+        {
+            super(null, null, false, false);
+        }
+    }
+    
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Skips conversions of LST files that did not change since their patch was 
+ * made. The index file maps every produced IPS file to the SHA-256 of the 
+ * LST file it was made from, the settings it was made with and the SHA-256 
+ * and size of the patch itself, so a patch that was removed or altered 
+ * afterwards, or made with another base ROM, is made again. 
+ * Only the most recently used entries are kept. Changes to the index are 
+ * saved by {@link #flush()} and {@link #close()}.
+ * 
+ * @author Elwin Slokker
+ */
+public class ConversionCache implements Converter, Flushable, Closeable
+{
+    public static final int DEFAULT_MAXIMUM_ENTRIES = 10000;
+    
+    private static final String SEPARATOR = "\t";
+    
+    private static final String PLAIN_SETTINGS = "plain";
+    
+    private static final String BRIDGE_SETTINGS = "bridged:";
+    
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    private final File index;
+    
+    private final Converter converter;
+    
+    private final boolean rebuild;
+    
+    private final String settings;
+    
+    private final Map<String, Fingerprint> entries;
+    
+    private final AtomicInteger skipped = new AtomicInteger();
+    
+    /**
+     * Whether the entries differ from the index file, guarded by this.
+     */
+    private boolean changed = false;
+    
+    /**
+     * 
+     * @param index the file the cache is read from and saved to.
+     * @param converter does the conversions that cannot be skipped.
+     * @param maximumEntries amount of patches to remember, the least 
+     * recently used ones are forgotten first.
+     * @param rebuild when true nothing is skipped, but the index is still 
+     * updated.
+     * @param settings whatever else the patches of the converter depend on, 
+     * such as the base ROM it bridges with, without tabs or line breaks. 
+     * Patches made with other settings are made again.
+     */
+    public ConversionCache(File index, Converter converter, int maximumEntries, boolean rebuild, String settings)
+    {
+        this.index = index;
+        this.converter = converter;
+        this.rebuild = rebuild;
+        this.settings = settings;
+        this.entries = new LinkedHashMap<String, Fingerprint>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Fingerprint> eldest)
+            {
+                return size() > maximumEntries;
+            }
+        };
+    }
+    
+    /**
+     * Reads the index file, a missing or damaged index is an empty cache.
+     * 
+     * @throws IOException when an existing index cannot be read.
+     */
+    public void load() throws IOException
+    {
+        if(!index.isFile())
+        {
+            return;
+        }
+        try(BufferedReader reader = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8))
+        {
+            String line = reader.readLine();
+            while(line != null)
+            {
+                String[] fields = line.split(SEPARATOR);
+                if(fields.length == 5)
+                {
+                    try
+                    {
+                        synchronized(this)
+                        {
+                            entries.put(fields[0], new Fingerprint(fields[1], fields[2], fields[3], Long.parseLong(fields[4])));
+                        }
+                    }
+                    catch(NumberFormatException ex)
+                    {
+                        //damaged entry, convert again
+                    }
+                }
+                line = reader.readLine();
+            }
+        }
+    }
+    
+    /**
+     * Writes the index file, least recently used entry first.
+     * 
+     * @throws IOException when the index cannot be written.
+     */
+    public synchronized void save() throws IOException
+    {
+        File directory = index.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(index.getName() + ".", ".tmp", directory);
+        try
+        {
+            try(BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8))
+            {
+                for(Map.Entry<String, Fingerprint> entry : entries.entrySet())
+                {
+                    Fingerprint value = entry.getValue();
+                    writer.write(entry.getKey() + SEPARATOR + value.targetHash + SEPARATOR + value.settings 
+                            + SEPARATOR + value.patchHash + SEPARATOR + value.patchSize);
+                    writer.newLine();
+                }
+            }
+            try
+            {
+                Files.move(temporary.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch(AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temporary.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            changed = false;
+        }
+        finally
+        {
+            temporary.delete();
+        }
+    }
+    
+    /**
+     * Saves the index file when it is behind.
+     * 
+     * @throws IOException when the index cannot be written.
+     */
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        if(changed)
+        {
+            save();
+        }
+    }
+    
+    /**
+     * Saves the index file when it is behind, the cache can still be used 
+     * afterwards.
+     * 
+     * @throws IOException when the index cannot be written.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+    }
+    
+    @Override
+    public boolean convert(File target, File destination, TextDisplay processOutput)
+    {
+        String key = destination.getAbsolutePath();
+        String targetHash;
+        try
+        {
+            targetHash = hash(target);
+        }
+        catch(IOException ex)
+        {
+            //the converter reports the unreadable LST file
+            return converter.convert(target, destination, processOutput);
+        }
+        try
+        {
+            if(!rebuild && isCurrent(key, targetHash, destination))
+            {
+                skipped.incrementAndGet();
+                return true;
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+        forget(key);
+        boolean converted = converter.convert(target, destination, processOutput);
+        if(converted)
+        {
+            try
+            {
+                Fingerprint entry = new Fingerprint(targetHash, settings, hash(destination), destination.length());
+                synchronized(this)
+                {
+                    entries.put(key, entry);
+                    changed = true;
+                }
+            }
+            catch(IOException ex)
+            {
+                //the patch is fine, it just will not be skipped next time
+            }
+        }
+        return converted;
+    }
+    
+    /**
+     * 
+     * @return how many conversions were skipped so far.
+     */
+    public int skipped()
+    {
+        return skipped.get();
+    }
+    
+    private boolean isCurrent(String key, String targetHash, File destination) throws IOException
+    {
+        Fingerprint entry;
+        synchronized(this)
+        {
+            entry = entries.get(key);
+        }
+        return entry != null 
+                && entry.targetHash.equals(targetHash)
+                && entry.settings.equals(settings)
+                && destination.isFile()
+                && destination.length() == entry.patchSize
+                && entry.patchHash.equals(hash(destination));
+    }
+    
+    private synchronized void forget(String key)
+    {
+        if(entries.remove(key) != null)
+        {
+            changed = true;
+        }
+    }
+    
+    /**
+     * 
+     * @param baseRom the ROM the converter bridges gaps with, null when it 
+     * does not bridge.
+     * @return the settings for a converter bridging with the base ROM, 
+     * which change along with its content.
+     * @throws IOException when the base ROM cannot be read.
+     */
+    public static String settings(File baseRom) throws IOException
+    {
+        return baseRom == null ? PLAIN_SETTINGS : BRIDGE_SETTINGS + hash(baseRom);
+    }
+    
+    /**
+     * 
+     * @return the SHA-256 of the file content as hex digits.
+     */
+    static String hash(File file) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while(channel.read(buffer) != -1)
+            {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for(byte single : digest.digest())
+        {
+            hex.append(String.format("%02x", single));
+        }
+        return hex.toString();
+    }
+    
+    private static class Fingerprint
+    {
+        private final String targetHash;
+        
+        private final String settings;
+        
+        private final String patchHash;
+        
+        private final long patchSize;
+        
+        public Fingerprint(String targetHash, String settings, String patchHash, long patchSize)
+        {
+            this.targetHash = targetHash;
+            this.settings = settings;
+            this.patchHash = patchHash;
+            this.patchSize = patchSize;
+        }
+        
+    }
+    
+}
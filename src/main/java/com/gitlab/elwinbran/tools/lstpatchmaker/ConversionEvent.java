@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder event for a conversion, spanning it from 
+ * {@link ConversionMetrics#begin()} to {@link ConversionMetrics#end(boolean)}. 
+ * Only ever loaded through {@link ConversionMetrics}.
+ * 
+ * @author Elwin Slokker
+ */
+@Name("com.gitlab.elwinbran.tools.lstpatchmaker.Conversion")
+@Label("LST Conversion")
+@Category("LST Patch Maker")
+@Description("A LST file converted into an IPS patch")
+class ConversionEvent extends Event
+{
+    @Label("Target")
+    String target;
+    
+    @Label("Successful")
+    boolean successful;
+    
+    @Label("Streamed")
+    boolean streamed;
+    
+    @Label("Conversion Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long conversionTime;
+    
+    @Label("Stream Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long streamTime;
+    
+    @Label("Scan Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long scanTime;
+    
+    @Label("Coalesce Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long coalesceTime;
+    
+    @Label("Bridge Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long bridgeTime;
+    
+    @Label("Write Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long writeTime;
+    
+    @Label("Input Size")
+    @DataAmount
+    long inputBytes;
+    
+    @Label("Lines")
+    int lines;
+    
+    @Label("Changes")
+    int changes;
+    
+    @Label("Merges")
+    int merges;
+    
+    @Label("Records")
+    int records;
+    
+    @Label("RLE Records")
+    int repeats;
+    
+    @Label("Patch Size")
+    @DataAmount
+    long patchBytes;
+    
+    @Label("Bridges")
+    int bridges;
+    
+    @Label("Unbridged Patch Size")
+    @DataAmount
+    long unbridgedPatchBytes;
+    
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+    
+    /**
+     * 
+     * @return the started event, null when it is not recorded.
+     */
+    static ConversionEvent start()
+    {
+        ConversionEvent event = new ConversionEvent();
+        if(!event.isEnabled())
+        {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+    
+    /**
+     * Ends the event and fills it with the metrics of the conversion.
+     */
+    static void commit(ConversionEvent event, ConversionMetrics metrics)
+    {
+        event.end();
+        if(!event.shouldCommit())
+        {
+            return;
+        }
+        event.target = metrics.target().getPath();
+        event.successful = metrics.isSuccessful();
+        event.streamed = metrics.isStreamed();
+        event.conversionTime = metrics.duration();
+        event.streamTime = metrics.stage(Conversion.STREAM_STAGE);
+        event.scanTime = metrics.stage(Conversion.SCAN_STAGE);
+        event.coalesceTime = metrics.stage(Conversion.COALESCE_STAGE);
+        event.bridgeTime = metrics.stage(Conversion.BRIDGE_STAGE);
+        event.writeTime = metrics.stage(Conversion.WRITE_STAGE);
+        event.inputBytes = metrics.inputBytes();
+        event.lines = metrics.lines();
+        event.changes = metrics.changes();
+        event.merges = metrics.merges();
+        event.records = metrics.records();
+        event.repeats = metrics.repeats();
+        event.patchBytes = metrics.patchBytes();
+        event.bridges = metrics.bridges();
+        event.unbridgedPatchBytes = metrics.unbridgedPatchBytes();
+        event.allocated = metrics.allocated();
+        event.commit();
+    }
+    
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timings and counters of a single conversion. 
+ * Stages are timed in nanoseconds; with a streamed conversion scanning, 
+ * coalescing and writing happen together in the 'stream' stage, otherwise 
+ * they are timed as 'scan', 'coalesce' and 'write'. The allocated bytes only 
+ * count the converting thread, not the threads that scan a large file in 
+ * parallel. When Java Flight Recorder is available every finished 
+ * conversion is also recorded as a {@link ConversionEvent}.
+ * 
+ * @author Elwin Slokker
+ */
+public class ConversionMetrics
+{
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    
+    private final List<File> targets;
+    
+    private final File destination;
+    
+    private final ConversionProgress progress;
+    
+    private final Map<String, Long> stages = new LinkedHashMap<>();
+    
+    private long start;
+    
+    private long allocatedAtStart;
+    
+    private long duration;
+    
+    private long allocated = -1;
+    
+    private boolean successful;
+    
+    private boolean streamed;
+    
+    private long inputBytes;
+    
+    private int lines;
+    
+    private int changes;
+    
+    private int merges;
+    
+    private int records;
+    
+    private int repeats;
+    
+    private long patchBytes;
+    
+    private int bridges;
+    
+    private long unbridgedPatchBytes = -1;
+    
+    /**
+     * The running flight recorder event, null when none is recorded. Not 
+     * typed as such, the event class needs JFR.
+     */
+    private Object event;
+    
+    public ConversionMetrics(File target, File destination)
+    {
+        this(target, destination, ConversionProgress.NONE);
+    }
+    
+    /**
+     * 
+     * @param target the LST file to convert.
+     * @param destination the IPS file to write.
+     * @param progress follows the conversion while it runs.
+     */
+    public ConversionMetrics(File target, File destination, ConversionProgress progress)
+    {
+        this(Collections.singletonList(target), destination, progress);
+    }
+    
+    /**
+     * 
+     * @param targets the LST files combined into one patch, at least one.
+     * @param destination the IPS file to write.
+     */
+    public ConversionMetrics(List<File> targets, File destination)
+    {
+        this(targets, destination, ConversionProgress.NONE);
+    }
+    
+    private ConversionMetrics(List<File> targets, File destination, ConversionProgress progress)
+    {
+        this.targets = targets;
+        this.destination = destination;
+        this.progress = progress;
+    }
+    
+    /**
+     * Starts the clock of the whole conversion.
+     */
+    public void begin()
+    {
+        inputBytes = 0;
+        for(File target : targets)
+        {
+            inputBytes += target.length();
+        }
+        allocatedAtStart = allocatedBytes();
+        event = FlightRecorder.start();
+        start = System.nanoTime();
+    }
+    
+    /**
+     * Stops the clock of the whole conversion and records it.
+     * 
+     * @param successful whether the patch was written.
+     */
+    public void end(boolean successful)
+    {
+        duration = System.nanoTime() - start;
+        this.successful = successful;
+        long allocatedAtEnd = allocatedBytes();
+        if(allocatedAtStart >= 0 && allocatedAtEnd >= 0)
+        {
+            allocated = allocatedAtEnd - allocatedAtStart;
+        }
+        FlightRecorder.commit(event, this);
+        event = null;
+    }
+    
+    /**
+     * 
+     * @param name name of the stage, time is added up when it is repeated.
+     * @param nanoseconds time the stage took.
+     */
+    public void stage(String name, long nanoseconds)
+    {
+        stages.merge(name, nanoseconds, Long::sum);
+    }
+    
+    public void streamed(StreamingCoalescer stream, RecordEmitter emitter, IpsWriter writer)
+    {
+        streamed = true;
+        lines = stream.lines();
+        changes = stream.changes();
+        merges = stream.merges();
+        records(emitter, writer);
+    }
+    
+    public void scanned(int lines, int changes)
+    {
+        streamed = false;
+        this.lines = lines;
+        this.changes = changes;
+    }
+    
+    public void coalesced(AddressImage image)
+    {
+        coalesced(image.merges());
+    }
+    
+    /**
+     * 
+     * @param merges the amount of changes that were joined to another.
+     */
+    public void coalesced(int merges)
+    {
+        this.merges = merges;
+    }
+    
+    public void records(RecordEmitter emitter, IpsWriter writer)
+    {
+        records = emitter.records();
+        repeats = emitter.repeats();
+        patchBytes = writer.size();
+    }
+    
+    /**
+     * 
+     * @param bridges gaps filled with the bytes of the base ROM.
+     * @param unbridgedPatchBytes size the patch has without bridging.
+     */
+    public void bridged(int bridges, long unbridgedPatchBytes)
+    {
+        this.bridges = bridges;
+        this.unbridgedPatchBytes = unbridgedPatchBytes;
+    }
+    
+    /**
+     * 
+     * @return the LST file, or the first of the LST files that were 
+     * combined.
+     */
+    public File target()
+    {
+        return targets.get(0);
+    }
+
+    
+    public ConversionProgress progress()
+    {
+        return progress;
+    }
+    
+    public boolean isSuccessful()
+    {
+        return successful;
+    }
+    
+    public boolean isStreamed()
+    {
+        return streamed;
+    }
+    
+    public long duration()
+    {
+        return duration;
+    }
+    
+    /**
+     * 
+     * @param name name of the stage.
+     * @return nanoseconds spent in the stage, 0 when it did not run.
+     */
+    public long stage(String name)
+    {
+        return stages.getOrDefault(name, 0L);
+    }
+    
+    public long inputBytes()
+    {
+        return inputBytes;
+    }
+    
+    public int lines()
+    {
+        return lines;
+    }
+    
+    public int changes()
+    {
+        return changes;
+    }
+    
+    public int merges()
+    {
+        return merges;
+    }
+    
+    public int records()
+    {
+        return records;
+    }
+    
+    public int repeats()
+    {
+        return repeats;
+    }
+    
+    public long patchBytes()
+    {
+        return patchBytes;
+    }
+    
+    public int bridges()
+    {
+        return bridges;
+    }
+    
+    /**
+     * 
+     * @return size the patch has without bridging, -1 when no base ROM 
+     * was given.
+     */
+    public long unbridgedPatchBytes()
+    {
+        return unbridgedPatchBytes;
+    }
+    
+    /**
+     * 
+     * @return bytes allocated by the converting thread, -1 when the JVM 
+     * cannot tell.
+     */
+    public long allocated()
+    {
+        return allocated;
+    }
+    
+    /**
+     * 
+     * @return all metrics as a single line JSON object.
+     */
+    public String toJson()
+    {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"target\":").append(quote(target().getPath()));
+        if(targets.size() > 1)
+        {
+            json.append(",\"targets\":[");
+            String separator = "";
+            for(File target : targets)
+            {
+                json.append(separator).append(quote(target.getPath()));
+                separator = ",";
+            }
+            json.append(']');
+        }
+        json.append(",\"destination\":").append(quote(destination.getPath()));
+        json.append(",\"successful\":").append(successful);
+        json.append(",\"streamed\":").append(streamed);
+        json.append(",\"durationNanos\":").append(duration);
+        json.append(",\"stageNanos\":{");
+        String separator = "";
+        for(Map.Entry<String, Long> stage : stages.entrySet())
+        {
+            json.append(separator).append(quote(stage.getKey())).append(':').append(stage.getValue());
+            separator = ",";
+        }
+        json.append('}');
+        json.append(",\"inputBytes\":").append(inputBytes);
+        json.append(",\"lines\":").append(lines);
+        json.append(",\"changes\":").append(changes);
+        json.append(",\"merges\":").append(merges);
+        json.append(",\"records\":").append(records);
+        json.append(",\"rleRecords\":").append(repeats);
+        json.append(",\"patchBytes\":").append(patchBytes);
+        json.append(",\"bridges\":").append(bridges);
+        json.append(",\"unbridgedPatchBytes\":").append(unbridgedPatchBytes);
+        json.append(",\"allocatedBytes\":").append(allocated);
+        return json.append('}').toString();
+    }
+    
+    private static String quote(String text)
+    {
+        StringBuilder quoted = new StringBuilder("\"");
+        for(char character : text.toCharArray())
+        {
+            if(character == '"' || character == '\\')
+            {
+                quoted.append('\\').append(character);
+            }
+            else if(character < 0x20)
+            {
+                quoted.append(String.format("\\u%04x", (int) character));
+            }
+            else
+            {
+                quoted.append(character);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+    
+    private static long allocatedBytes()
+    {
+        if(THREADS instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+            {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Keeps {@link ConversionEvent}, and with it jdk.jfr, from being loaded 
+     * on a JVM without Flight Recorder.
+     */
+    private static class FlightRecorder
+    {
+        private static final boolean AVAILABLE = available();
+        
+        public static Object start()
+        {
+            return AVAILABLE ? ConversionEvent.start() : null;
+        }
+        
+        public static void commit(Object event, ConversionMetrics metrics)
+        {
+            if(event != null)
+            {
+                ConversionEvent.commit((ConversionEvent) event, metrics);
+            }
+        }
+        
+        private static boolean available()
+        {
+            try
+            {
+                Class.forName("jdk.jfr.Event");
+                return true;
+            }
+            catch(ClassNotFoundException | LinkageError ex)
+            {
+                return false;
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+/**
+ * Follows a running conversion, all methods are called on the converting 
+ * thread. Throwing an unchecked exception from any of them stops the conversion, 
+ * the patch written so far is then thrown away.
+ * 
+ * @author Elwin Slokker
+ */
+public interface ConversionProgress
+{
+    /**
+     * Ignores all progress.
+     */
+    ConversionProgress NONE = new ConversionProgress()
+    {
+    };
+    
+    /**
+     * 
+     * @param bytes bytes of the listing scanned so far, always whole lines.
+     * @param lines lines scanned so far.
+     */
+    default void scanned(long bytes, int lines)
+    {
+    }
+    
+    /**
+     * 
+     * @param records records written so far.
+     */
+    default void written(int records)
+    {
+    }
+    
+    /**
+     * The listing turned out not to be sorted, it is scanned again from 
+     * the start and the counts start over.
+     */
+    default void restarted()
+    {
+    }
+    
+    /**
+     * The patch is complete and about to replace the destination, the last 
+     * moment to stop the conversion without touching it.
+     */
+    default void finishing()
+    {
+    }
+}
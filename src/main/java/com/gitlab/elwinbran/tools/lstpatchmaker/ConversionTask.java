@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import javafx.concurrent.Task;
+
+/**
+ * A single conversion run off the JavaFX application thread. Progress is 
+ * the part of the listing scanned, the message tells the lines scanned and 
+ * records written. When an unsorted listing has to be scanned again, that 
+ * second scan fills what is left of the progress bar, so it never goes 
+ * back. A cancelled conversion stops at the next chunk or record, at the 
+ * latest right before the patch replaces the destination, and leaves the 
+ * destination untouched. A failed conversion ends with an 
+ * exception holding the reason.
+ * 
+ * @author Elwin Slokker
+ */
+public class ConversionTask extends Task<ConversionMetrics>
+{
+    private static final long MESSAGE_INTERVAL = 50_000_000L;
+    
+    private final File target;
+    
+    private final File destination;
+    
+    public ConversionTask(File target, File destination)
+    {
+        this.target = target;
+        this.destination = destination;
+        updateTitle(target.getName() + " to " + destination.getName());
+        updateMessage("Waiting");
+    }
+    
+    public File target()
+    {
+        return target;
+    }
+    
+    public File destination()
+    {
+        return destination;
+    }
+    
+    @Override
+    protected ConversionMetrics call()
+    {
+        long size = target.length();
+        CollectingTextDisplay failures = new CollectingTextDisplay();
+        ConversionMetrics metrics = new ConversionMetrics(target, destination, new ConversionProgress()
+        {
+            private int lines = 0;
+            
+            private int records = 0;
+            
+            private long lastMessage = 0;
+            
+            /**
+             * Part of the progress bar filled before the current scan.
+             */
+            private double before = 0;
+            
+            private double done = 0;
+            
+            private String stage = "";
+            
+            @Override
+            public void scanned(long bytes, int lines)
+            {
+                stopWhenCancelled();
+                this.lines = lines;
+                done = before + (1 - before) * (size == 0 ? 1 : (double) bytes / size);
+                updateProgress(done, 1);
+                message();
+            }
+            
+            @Override
+            public void restarted()
+            {
+                before = done;
+                lines = 0;
+                records = 0;
+                stage = "Sorting in memory: ";
+                lastMessage = 0;
+                message();
+            }
+            
+            @Override
+            public void written(int records)
+            {
+                stopWhenCancelled();
+                this.records = records;
+                message();
+            }
+            
+            @Override
+            public void finishing()
+            {
+                stopWhenCancelled();
+            }
+            
+            /**
+             * Formats at most every 50ms, a large patch can have millions 
+             * of records.
+             */
+            private void message()
+            {
+                long now = System.nanoTime();
+                if(now - lastMessage >= MESSAGE_INTERVAL)
+                {
+                    lastMessage = now;
+                    updateMessage(stage + summary(lines, records));
+                }
+            }
+        });
+        stopWhenCancelled();
+        if(!Conversion.convert(target, destination, null, failures, metrics))
+        {
+            throw new RuntimeException(String.join(System.lineSeparator(), failures.texts()));
+        }
+        updateProgress(1, 1);
+        updateMessage(summary(metrics.lines(), metrics.records()));
+        return metrics;
+    }
+    
+    private static String summary(int lines, int records)
+    {
+        return String.format("%,d lines read, %,d records written", lines, records);
+    }
+    
+    private void stopWhenCancelled()
+    {
+        if(isCancelled())
+        {
+            throw new CancellationException();
+        }
+    }
+    
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+
+/**
+ * Window of the JavaFX route. Conversions are queued and run one after 
+ * another on a background thread, so the window stays responsive and more 
+ * listings can be added while one is converting. Closing the window 
+ * cancels everything that did not finish.
+ * 
+ * @author Elwin Slokker
+ */
+public class ConversionWindow
+{
+    private static final double SPACING = 8.0;
+    
+    private static final double WIDTH = 420.0;
+    
+    private final Stage stage;
+    
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    
+    private final List<ConversionTask> tasks = new ArrayList<>();
+    
+    private final TextDisplay failureDisplay = new FXAlert(Alert.AlertType.ERROR, ButtonType.CLOSE, 100.0);
+    
+    private final Label title = new Label("Nothing to convert");
+    
+    private final Label status = new Label();
+    
+    private final Label queued = new Label();
+    
+    private final ProgressBar progress = new ProgressBar(0);
+    
+    private final Button cancel = new Button("Cancel");
+    
+    public ConversionWindow(Stage stage)
+    {
+        this.stage = stage;
+    }
+    
+    public void show()
+    {
+        Button add = new Button("Add...");
+        add.setOnAction(event -> add());
+        cancel.setOnAction(event -> cancelRunning());
+        cancel.setDisable(true);
+        progress.setPrefWidth(WIDTH);
+        VBox root = new VBox(SPACING, title, progress, status, queued, new HBox(SPACING, add, cancel));
+        root.setPadding(new Insets(SPACING));
+        stage.setTitle("LST Patch Maker");
+        stage.setScene(new Scene(root));
+        stage.setOnCloseRequest(event -> close());
+        stage.show();
+    }
+    
+    /**
+     * Asks for a listing and its patch and queues their conversion.
+     * 
+     * @return false when either dialogue was cancelled.
+     */
+    public boolean add()
+    {
+        File target = new FileChooser().showOpenDialog(stage);
+        if(target == null)
+        {
+            return false;
+        }
+        FileChooser destinationFileChooser = new FileChooser();
+        destinationFileChooser.setInitialDirectory(target.getAbsoluteFile().getParentFile());
+        destinationFileChooser.setInitialFileName(BatchConversion.destination(target).getName());
+        File destination = destinationFileChooser.showSaveDialog(stage);
+        if(destination == null)
+        {
+            return false;
+        }
+        ConversionTask task = new ConversionTask(target, destination);
+        task.setOnRunning(event -> running(task));
+        task.setOnSucceeded(event -> finished(task, "Converted " + task.getTitle()));
+        task.setOnCancelled(event -> finished(task, "Cancelled " + task.getTitle()));
+        task.setOnFailed(event -> 
+        {
+            finished(task, "Failed " + task.getTitle());
+            failureDisplay.show("Conversion of " + task.target().getName() + " failed! " + task.getException().getMessage());
+        });
+        tasks.add(task);
+        updateQueued();
+        worker.execute(task);
+        return true;
+    }
+    
+    private void running(ConversionTask task)
+    {
+        title.textProperty().bind(task.titleProperty());
+        status.textProperty().bind(task.messageProperty());
+        progress.progressProperty().bind(task.progressProperty());
+        cancel.setDisable(false);
+        updateQueued();
+    }
+    
+    private void finished(ConversionTask task, String result)
+    {
+        tasks.remove(task);
+        title.textProperty().unbind();
+        status.textProperty().unbind();
+        progress.progressProperty().unbind();
+        title.setText(result);
+        status.setText(task.getMessage());
+        progress.setProgress(task.isCancelled() ? 0 : 1);
+        cancel.setDisable(true);
+        updateQueued();
+    }
+    
+    private void cancelRunning()
+    {
+        for(ConversionTask task : tasks)
+        {
+            if(task.isRunning())
+            {
+                task.cancel();
+            }
+        }
+    }
+    
+    private void updateQueued()
+    {
+        long waiting = tasks.stream().filter(task -> !task.isRunning()).count();
+        queued.setText(waiting == 0 ? "" : waiting + " waiting");
+    }
+    
+    /**
+     * The worker thread finishes cancelling the running conversion before 
+     * the JVM exits, so its temporary file is removed.
+     */
+    private void close()
+    {
+        for(ConversionTask task : new ArrayList<>(tasks))
+        {
+            task.cancel();
+        }
+        worker.shutdownNow();
+        Platform.exit();
+    }
+    
+}
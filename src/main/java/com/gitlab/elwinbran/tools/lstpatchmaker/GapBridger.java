@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins records that lie only a few bytes apart by filling the gap with 
+ * the original bytes of the base ROM. Every record costs a 5 byte header, 
+ * so a gap of at most 4 bytes is cheaper to write out than to skip. 
+ * Joined records never grow past the 65535 bytes a record can hold, 
+ * and their start offsets stay the same. The base ROM is only read, 
+ * so one bridger can serve several conversions at the same time.
+ * 
+ * @author Elwin Slokker
+ */
+public class GapBridger
+{
+    /**
+     * Gaps up to this size are bridged.
+     */
+    public static final int MAXIMUM_GAP = IpsWriter.RECORD_HEADER_SIZE - 1;
+    
+    private final ByteBuffer base;
+    
+    /**
+     * 
+     * @param base the original bytes the patch will be applied to.
+     */
+    public GapBridger(ByteBuffer base)
+    {
+        this.base = base;
+    }
+    
+    /**
+     * 
+     * @param base the ROM the patch will be applied to.
+     * @return a bridger reading the memory mapped ROM.
+     * @throws IOException when the ROM cannot be read.
+     */
+    public static GapBridger open(File base) throws IOException
+    {
+        return new GapBridger(LstScanner.map(base));
+    }
+    
+    /**
+     * 
+     * @param records sorted, non-overlapping records, these are never 
+     * changed.
+     * @return the records with every short gap inside the base ROM 
+     * filled where that makes the patch smaller, records that did not 
+     * change are shared with the input.
+     */
+    public List<Record> bridge(Iterable<Record> records)
+    {
+        return bridge(records, null);
+    }
+    
+    /**
+     * Every gap is decided on its own: it is only filled when the joined 
+     * record takes less space than the two records apart, which is not a 
+     * given when a run-length encoded record ends up in the middle. Only 
+     * the end of the joined record is measured again, the runs in front of 
+     * its last run are encoded the same whatever follows them.
+     * 
+     * @param records sorted, non-overlapping records, these are never 
+     * changed.
+     * @param metrics receives the amount of bridges and the size of the 
+     * patch without them, may be null.
+     * @return the records with every short gap inside the base ROM 
+     * filled where that makes the patch smaller, records that did not 
+     * change are shared with the input.
+     */
+    public List<Record> bridge(Iterable<Record> records, ConversionMetrics metrics)
+    {
+        List<Record> result = new ArrayList<>();
+        Joined current = null;
+        long unbridgedSize = IpsWriter.EMPTY_PATCH_SIZE;
+        int bridges = 0;
+        for(Record record : records)
+        {
+            Joined following = new Joined(record);
+            unbridgedSize += following.size;
+            if(current != null && bridges(current.record, record) && current.join(following, base))
+            {
+                result.set(result.size() - 1, current.record);
+                bridges++;
+                continue;
+            }
+            result.add(record);
+            current = following;
+        }
+        if(metrics != null)
+        {
+            metrics.bridged(bridges, unbridgedSize);
+        }
+        return result;
+    }
+    
+    private boolean bridges(Record current, Record following)
+    {
+        int gap = following.offset() - current.end();
+        return gap > 0 && gap <= MAXIMUM_GAP 
+                && following.offset() <= base.limit() 
+                && current.length() + gap + following.length() <= IpsWriter.MAXIMUM_RECORD_SIZE;
+    }
+    
+    /**
+     * 
+     * @param mark offset to check for the end of a run-length encoded 
+     * record.
+     * @return the counter holding the size of the records made of the 
+     * bytes, without the patch header and EOF marker.
+     */
+    private static SizeCounter measure(int offset, byte[] data, int from, int length, int mark)
+    {
+        SizeCounter counter = new SizeCounter(mark);
+        try
+        {
+            new RecordEmitter(counter).emit(offset, data, from, length);
+        }
+        catch(IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        return counter;
+    }
+    
+    /**
+     * 
+     * @return the index of the first byte of the run of equal bytes at the 
+     * end of the data.
+     */
+    private static int lastRun(byte[] data, int from, int length)
+    {
+        int index = from + length - 1;
+        while(index > from && data[index - 1] == data[index])
+        {
+            index--;
+        }
+        return index;
+    }
+    
+    /**
+     * A record that more records may be joined to, together with the size 
+     * it takes in the patch.
+     */
+    private static class Joined
+    {
+        private Record record;
+        
+        private boolean copied = false;
+        
+        private long size;
+        
+        /**
+         * Offset of the run of equal bytes at the end of the record.
+         */
+        private int lastRun;
+        
+        /**
+         * Whether the bytes in front of the last run are written as a 
+         * literal record together with it, rather than ending in a 
+         * run-length encoded record or the start of the record.
+         */
+        private boolean pending;
+        
+        private Joined(Record record)
+        {
+            this.record = record;
+            lastRun = record.offset() + lastRun(record.data(), 0, record.length());
+            SizeCounter counter = measure(record.offset(), record.data(), 0, record.length(), lastRun);
+            size = counter.size;
+            pending = lastRun > record.offset() && !counter.repeatEndsAtMark;
+        }
+        
+        /**
+         * The decisions for the runs in front of the last one do not 
+         * change, so both ways are measured from the start of the last run. 
+         * A pending literal is stood in for by the one byte in front of it, 
+         * which adds the same amount to both sizes.
+         * 
+         * @return whether the following record was joined, only when that 
+         * makes the patch smaller.
+         */
+        private boolean join(Joined following, ByteBuffer base)
+        {
+            int start = lastRun - (pending ? 1 : 0);
+            int gap = following.record.offset() - record.end();
+            byte[] tail = new byte[record.end() - start + gap + following.record.length()];
+            System.arraycopy(record.data(), start - record.offset(), tail, 0, record.end() - start);
+            for(int index = 0; index < gap; index++)
+            {
+                tail[record.end() - start + index] = base.get(record.end() + index);
+            }
+            System.arraycopy(following.record.data(), 0, tail, record.end() - start + gap, following.record.length());
+            long apart = measure(start, record.data(), start - record.offset(), record.end() - start, -1).size;
+            int joinedRun = start + lastRun(tail, 0, tail.length);
+            SizeCounter joined = measure(start, tail, 0, tail.length, joinedRun);
+            if(joined.size >= apart + following.size)
+            {
+                return false;
+            }
+            if(!copied)
+            {
+                record = new Record(record.offset(), Arrays.copyOf(record.data(), record.length()));
+                copied = true;
+            }
+            record.append(Arrays.copyOfRange(tail, record.end() - start, tail.length));
+            size += joined.size - apart;
+            pending = joinedRun > start && !joined.repeatEndsAtMark;
+            lastRun = joinedRun;
+            return true;
+        }
+    }
+    
+    private static class SizeCounter implements RecordSink
+    {
+        private final int mark;
+        
+        private long size = 0;
+        
+        private boolean repeatEndsAtMark = false;
+        
+        private SizeCounter(int mark)
+        {
+            this.mark = mark;
+        }
+        
+        @Override
+        public void write(int offset, byte[] data, int from, int length)
+        {
+            size += IpsWriter.RECORD_HEADER_SIZE + length;
+        }
+        
+        @Override
+        public void writeRepeat(int offset, int count, byte value)
+        {
+            size += IpsWriter.RLE_RECORD_SIZE;
+            if(offset + count == mark)
+            {
+                repeatEndsAtMark = true;
+            }
+        }
+    }
+    
+}
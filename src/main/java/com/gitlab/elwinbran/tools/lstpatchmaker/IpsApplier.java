@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies IPS patches to a base file and checks the result against the LST 
+ * file the patch was made from. The patch and the output are memory 
+ * mapped, so record data goes straight from one mapping into the other.
+ * 
+ * @author Elwin Slokker
+ */
+public class IpsApplier
+{
+    private static final byte[] HEADER = {0x50, 0x41, 0x54, 0x43, 0x48};
+    
+    private static final int TRUNCATION_SIZE = 3;
+    
+    private static final int MAXIMUM_REPORTED_MISMATCHES = 20;
+    
+    private IpsApplier()
+    {
+    }
+    
+    /**
+     * Copies the base to the output and applies the patch to the copy. 
+     * Records may grow the output past the size of the base; the optional 
+     * truncation size after the EOF marker is honoured.
+     * 
+     * @param base the unpatched file.
+     * @param patch the IPS patch.
+     * @param output the patched file to (over)write, may be the base itself.
+     * @throws IOException when reading or writing fails, or the patch is 
+     * not a valid IPS file.
+     */
+    public static void apply(File base, File patch, File output) throws IOException
+    {
+        //the whole patch is checked before the output is touched
+        ByteBuffer records = LstScanner.map(patch);
+        int end = records(records, patch);
+        if(!base.getCanonicalFile().equals(output.getCanonicalFile()))
+        {
+            try(FileChannel from = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+                FileChannel to = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                long position = 0;
+                long size = from.size();
+                while(position < size)
+                {
+                    position += from.transferTo(position, size - position, to);
+                }
+            }
+        }
+        try(FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            long size = Math.max(channel.size(), end(records, end));
+            MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int index = HEADER.length;
+            while(index < end)
+            {
+                int offset = unsigned24(records, index);
+                int length = unsigned16(records, index + 3);
+                index += 5;
+                if(length == 0)
+                {
+                    int count = unsigned16(records, index);
+                    byte value = records.get(index + 2);
+                    for(int i = 0; i < count; i++)
+                    {
+                        image.put(offset + i, value);
+                    }
+                    index += 3;
+                }
+                else
+                {
+                    ByteBuffer data = records.duplicate();
+                    data.limit(index + length).position(index);
+                    image.position(offset);
+                    image.put(data);
+                    index += length;
+                }
+            }
+            image.force();
+            int trailer = end + 3;
+            if(records.limit() - trailer == TRUNCATION_SIZE)
+            {
+                channel.truncate(unsigned24(records, trailer));
+            }
+        }
+    }
+    
+    /**
+     * Checks that the image holds every byte the listing declares.
+     * 
+     * @param listing the LST file the patch was made from.
+     * @param image the patched file.
+     * @return a description of every differing range, empty when the image 
+     * matches the listing.
+     * @throws IOException when either file cannot be read.
+     * @throws RuntimeException when the LST file is invalid.
+     */
+    public static List<String> verify(File listing, File image) throws IOException
+    {
+        AddressImage expected = Conversion.image(listing);
+        ByteBuffer actual = LstScanner.map(image);
+        List<String> mismatches = new ArrayList<>();
+        int ranges = 0;
+        for(Record record : expected.runs())
+        {
+            byte[] data = record.data();
+            int i = 0;
+            while(i < record.length())
+            {
+                int offset = record.offset() + i;
+                if(offset < actual.limit() && actual.get(offset) == data[i])
+                {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while(i < record.length() && (record.offset() + i >= actual.limit() || actual.get(record.offset() + i) != data[i]))
+                {
+                    i++;
+                }
+                ranges++;
+                if(mismatches.size() < MAXIMUM_REPORTED_MISMATCHES)
+                {
+                    mismatches.add(mismatch(record, start, i, actual));
+                }
+            }
+        }
+        if(ranges > mismatches.size())
+        {
+            mismatches.add("... and " + (ranges - mismatches.size()) + " more differing ranges.");
+        }
+        return mismatches;
+    }
+    
+    private static String mismatch(Record record, int from, int to, ByteBuffer actual)
+    {
+        int offset = record.offset() + from;
+        if(offset >= actual.limit())
+        {
+            return String.format("0x%06X up to 0x%06X lies past the end of the image.", offset, record.offset() + to - 1);
+        }
+        if(to - from == 1)
+        {
+            return String.format("0x%06X: expected %02X, found %02X.", offset, record.data()[from], actual.get(offset));
+        }
+        return String.format("0x%06X up to 0x%06X differs, starting with expected %02X, found %02X.", 
+                offset, record.offset() + to - 1, record.data()[from], actual.get(offset));
+    }
+    
+    /**
+     * Walks the record headers only, which is enough to know that every 
+     * record lies within the patch.
+     * 
+     * @return the index of the EOF marker.
+     * @throws IOException when the patch is not a complete IPS file.
+     */
+    private static int records(ByteBuffer patch, File file) throws IOException
+    {
+        for(int i = 0; i < HEADER.length; i++)
+        {
+            if(patch.limit() <= i || patch.get(i) != HEADER[i])
+            {
+                throw new IOException("The file '" + file + "' is not an IPS patch.");
+            }
+        }
+        int index = HEADER.length;
+        while(true)
+        {
+            if(index + 3 > patch.limit())
+            {
+                throw new IOException("The patch '" + file + "' ends without an EOF marker.");
+            }
+            if(unsigned24(patch, index) == IpsWriter.EOF_OFFSET)
+            {
+                return index;
+            }
+            if(index + 5 > patch.limit())
+            {
+                throw new IOException("The patch '" + file + "' ends in the middle of a record.");
+            }
+            int length = unsigned16(patch, index + 3);
+            index += 5 + (length == 0 ? 3 : length);
+            if(index > patch.limit())
+            {
+                throw new IOException("The patch '" + file + "' ends in the middle of a record.");
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @return the first location after every record.
+     */
+    private static long end(ByteBuffer patch, int eof)
+    {
+        long end = 0;
+        int index = HEADER.length;
+        while(index < eof)
+        {
+            int offset = unsigned24(patch, index);
+            int length = unsigned16(patch, index + 3);
+            if(length == 0)
+            {
+                end = Math.max(end, offset + unsigned16(patch, index + 5));
+                index += 8;
+            }
+            else
+            {
+                end = Math.max(end, offset + length);
+                index += 5 + length;
+            }
+        }
+        return end;
+    }
+    
+    private static int unsigned24(ByteBuffer buffer, int index)
+    {
+        return ((buffer.get(index) & 0xFF) << 16) | ((buffer.get(index + 1) & 0xFF) << 8) | (buffer.get(index + 2) & 0xFF);
+    }
+    
+    private static int unsigned16(ByteBuffer buffer, int index)
+    {
+        return ((buffer.get(index) & 0xFF) << 8) | (buffer.get(index + 1) & 0xFF);
+    }
+    
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes an IPS patch to a temporary file next to the destination and 
+ * renames it into place on {@link #commit()}, so the destination is never 
+ * left half written. A patch can also be written to any channel, which is 
+ * then left open. Record headers and small payloads are collected in a 
+ * buffer; large payloads are written together with the pending buffer in 
+ * one gathering write when the channel supports that.
+ * 
+ * @author Elwin Slokker
+ */
+public class IpsWriter implements RecordSink, Closeable
+{
+    /**
+     * 'EOF' read as an offset, a record can never start here.
+     */
+    public static final int EOF_OFFSET = 0x454F46;
+    
+    public static final int MAXIMUM_RECORD_SIZE = 0xFFFF;
+    
+    /**
+     * The 3 byte offsets reach up to, but not including, this location.
+     */
+    public static final int ADDRESS_SPACE = 0x1000000;
+    
+    /**
+     * Bytes taken by the offset and size of a record.
+     */
+    public static final int RECORD_HEADER_SIZE = 5;
+    
+    /**
+     * Bytes taken by a whole run-length encoded record.
+     */
+    public static final int RLE_RECORD_SIZE = 8;
+    
+    /**
+     * Bytes taken by 'PATCH' and 'EOF', the size of a patch without records.
+     */
+    public static final int EMPTY_PATCH_SIZE = 8;
+    
+    private static final byte[] HEADER = {0x50, 0x41, 0x54, 0x43, 0x48};
+    
+    private static final byte[] FOOTER = {0x45, 0x4F, 0x46};
+    
+    /**
+     * Size of the buffer a writer allocates when none is handed to it.
+     */
+    public static final int BUFFER_SIZE = 1 << 16;
+    
+    private final File destination;
+    
+    private final File temporary;
+    
+    private final WritableByteChannel channel;
+    
+    private final ByteBuffer buffer;
+    
+    private boolean committed = false;
+    
+    private long written = 0;
+    
+    private IpsWriter(File destination, File temporary, WritableByteChannel channel, ByteBuffer buffer)
+    {
+        if(buffer.capacity() < RLE_RECORD_SIZE)
+        {
+            throw new IllegalArgumentException("The buffer of a patch needs at least " + RLE_RECORD_SIZE + " bytes.");
+        }
+        this.destination = destination;
+        this.temporary = temporary;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.buffer.clear();
+        this.buffer.put(HEADER);
+    }
+    
+    /**
+     * Starts a new patch, nothing is visible at the destination until 
+     * {@link #commit()}.
+     * 
+     * @param destination the IPS file to produce.
+     * @return a writer for the patch.
+     * @throws IOException when the temporary file cannot be created.
+     */
+    public static IpsWriter open(File destination) throws IOException
+    {
+        return open(destination, ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+    
+    /**
+     * Starts a new patch, nothing is visible at the destination until 
+     * {@link #commit()}.
+     * 
+     * @param destination the IPS file to produce.
+     * @param buffer collects the records, its contents are overwritten. 
+     * It can be reused once the writer is closed.
+     * @return a writer for the patch.
+     * @throws IOException when the temporary file cannot be created.
+     */
+    public static IpsWriter open(File destination, ByteBuffer buffer) throws IOException
+    {
+        File directory = destination.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(destination.getName() + ".", ".tmp", directory);
+        try
+        {
+            return new IpsWriter(destination, temporary, FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE), buffer);
+        }
+        catch(IOException | RuntimeException ex)
+        {
+            temporary.delete();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Starts a new patch on a channel. The channel is never closed and 
+     * whatever was written before a failure stays written.
+     * 
+     * @param channel receives the patch.
+     * @param buffer collects the records, its contents are overwritten. 
+     * It can be reused once the writer is closed.
+     * @return a writer for the patch.
+     */
+    public static IpsWriter open(WritableByteChannel channel, ByteBuffer buffer)
+    {
+        return new IpsWriter(null, null, channel, buffer);
+    }
+    
+    public void write(Record record) throws IOException
+    {
+        write(record.offset(), record.data(), 0, record.length());
+    }
+    
+    /**
+     * 
+     * @param offset location of the first byte of the record.
+     * @param data array holding the changes.
+     * @param from index of the first change in the array.
+     * @param length amount of changes, from 1 up to 65535.
+     * @throws IOException when writing fails.
+     */
+    @Override
+    public void write(int offset, byte[] data, int from, int length) throws IOException
+    {
+        if(length < 1 || length > MAXIMUM_RECORD_SIZE)
+        {
+            throw new IllegalArgumentException("A record cannot hold " + length + " bytes.");
+        }
+        header(offset, length);
+        // DATA
+        if(length <= buffer.remaining())
+        {
+            buffer.put(data, from, length);
+        }
+        else
+        {
+            ByteBuffer payload = ByteBuffer.wrap(data, from, length);
+            if(channel instanceof GatheringByteChannel)
+            {
+                buffer.flip();
+                ByteBuffer[] pending = {buffer, payload};
+                while(payload.hasRemaining())
+                {
+                    written += ((GatheringByteChannel) channel).write(pending);
+                }
+                buffer.clear();
+            }
+            else
+            {
+                flush();
+                while(payload.hasRemaining())
+                {
+                    written += channel.write(payload);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes a run-length encoded record, which sets count bytes to the same 
+     * value.
+     * 
+     * @param offset location of the first byte of the record.
+     * @param count amount of bytes to set, from 1 up to 65535.
+     * @param value the byte to repeat.
+     * @throws IOException when writing fails.
+     */
+    @Override
+    public void writeRepeat(int offset, int count, byte value) throws IOException
+    {
+        if(count < 1 || count > MAXIMUM_RECORD_SIZE)
+        {
+            throw new IllegalArgumentException("A record cannot repeat a byte " + count + " times.");
+        }
+        header(offset, 0);
+        if(buffer.remaining() < RLE_RECORD_SIZE - RECORD_HEADER_SIZE)
+        {
+            flush();
+        }
+        // 2 byte COUNT and the VALUE
+        buffer.put((byte) ((count >> 8) & 0xFF));
+        buffer.put((byte) (count & 0xFF));
+        buffer.put(value);
+    }
+    
+    /**
+     * Ends the patch and moves it to the destination, replacing any 
+     * earlier file there. A patch written to a channel is only flushed.
+     * 
+     * @throws IOException when the patch could not be finished or moved.
+     */
+    public void commit() throws IOException
+    {
+        if(buffer.remaining() < FOOTER.length)
+        {
+            flush();
+        }
+        buffer.put(FOOTER);
+        flush();
+        if(temporary == null)
+        {
+            committed = true;
+            return;
+        }
+        channel.close();
+        try
+        {
+            Files.move(temporary.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException ex)
+        {
+            Files.move(temporary.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+    }
+    
+    /**
+     * 
+     * @return the size of the patch so far, in bytes.
+     */
+    public long size()
+    {
+        return written + buffer.position();
+    }
+    
+    /**
+     * Throws away the patch when it was not committed. The channel of a 
+     * patch written to a channel is left open.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(!committed && temporary != null)
+        {
+            channel.close();
+            temporary.delete();
+        }
+    }
+    
+    private void header(int offset, int size) throws IOException
+    {
+        if(offset == EOF_OFFSET || offset < 0 || offset >= ADDRESS_SPACE)
+        {
+            throw new IllegalArgumentException("A record cannot start at offset 0x" + Integer.toHexString(offset).toUpperCase() + ".");
+        }
+        if(buffer.remaining() < RECORD_HEADER_SIZE)
+        {
+            flush();
+        }
+        // 3 byte OFFSET
+        buffer.put((byte) ((offset >> 16) & 0xFF));
+        buffer.put((byte) ((offset >> 8) & 0xFF));
+        buffer.put((byte) (offset & 0xFF));
+        // 2 byte SIZE
+        buffer.put((byte) ((size >> 8) & 0xFF));
+        buffer.put((byte) (size & 0xFF));
+    }
+    
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        while(buffer.hasRemaining())
+        {
+            written += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+}
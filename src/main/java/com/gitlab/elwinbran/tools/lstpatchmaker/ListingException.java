@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+/**
+ * A LST file that cannot be converted, because of what is on one of its 
+ * lines.
+ * 
+ * @author Elwin Slokker
+ */
+public class ListingException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+    
+    private final int line;
+    
+    private final String reason;
+    
+    /**
+     * 
+     * @param line number of the offending line, the first line is 1.
+     * @param reason what is wrong with the line.
+     */
+    public ListingException(int line, String reason)
+    {
+        super("Line " + line + ": " + reason);
+        this.line = line;
+        this.reason = reason;
+    }
+    
+    public int line()
+    {
+        return line;
+    }
+    
+    public String reason()
+    {
+        return reason;
+    }
+    
+    /**
+     * 
+     * @param lines amount of lines in front of the ones this was found in.
+     * @return the same exception, for the line counted from the start of 
+     * the whole file.
+     */
+    public ListingException after(int lines)
+    {
+        ListingException moved = new ListingException(line + lines, reason);
+        moved.setStackTrace(getStackTrace());
+        return moved;
+    }
+    
+}
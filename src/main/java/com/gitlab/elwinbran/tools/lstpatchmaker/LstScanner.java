@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Finds the LOC and OBJ columns of a LST file directly in its ASCII bytes.
+ * Every line is handled by a small state machine: a line starting with two 
+ * or more hex digits has those as its LOC, the next run of hex digits after 
+ * the following spaces is its OBJ. Any other line is skipped.
+ * 
+ * @author Elwin Slokker
+ */
+public class LstScanner
+{
+    private static final int MAXIMUM_OFFSET_DIGITS = 6;
+    
+    private static final int MINIMUM_OFFSET_DIGITS = 2;
+    
+    private final ChangeSink sink;
+    
+    private int lines = 0;
+    
+    public LstScanner(ChangeSink sink)
+    {
+        this.sink = sink;
+    }
+    
+    /**
+     * Memory maps the target and scans all of it.
+     * 
+     * @param target LST file of at most 2GB.
+     * @throws IOException when the file cannot be read.
+     */
+    public void scan(File target) throws IOException
+    {
+        scan(map(target));
+    }
+    
+    /**
+     * Reads the channel until its end and scans every complete line as 
+     * soon as it has been read, so the listing never has to be held in 
+     * memory as a whole. A line that does not fit the buffer makes it grow.
+     * 
+     * @param channel a blocking channel holding a LST file.
+     * @param buffer holds the lines being read, its contents are overwritten.
+     * @return the buffer, or the larger one that replaced it.
+     * @throws IOException when reading fails.
+     * @throws ListingException when a line holds an invalid change.
+     */
+    public ByteBuffer scan(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.clear();
+        boolean ended = false;
+        while(!ended)
+        {
+            ended = channel.read(buffer) < 0;
+            buffer.flip();
+            int limit = buffer.limit();
+            int complete = ended ? limit : lastLineEnd(buffer, buffer.position(), limit);
+            buffer.limit(complete);
+            scan(buffer);
+            buffer.limit(limit);
+            buffer.position(complete);
+            buffer.compact();
+            if(!buffer.hasRemaining())
+            {
+                ByteBuffer larger = buffer.isDirect() ? ByteBuffer.allocateDirect(buffer.capacity() * 2) : ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                buffer = larger.put(buffer);
+            }
+        }
+        return buffer;
+    }
+    
+    /**
+     * 
+     * @param target LST file of at most 2GB.
+     * @return the whole file, mapped read only.
+     * @throws IOException when the file cannot be read.
+     */
+    static ByteBuffer map(File target) throws IOException
+    {
+        try(RandomAccessFile file = new RandomAccessFile(target, "r");
+            FileChannel channel = file.getChannel())
+        {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+            {
+                throw new IOException("The file '" + target + "' is too large to be scanned.");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+    
+    /**
+     * Reads the file into memory through a channel. Unlike a mapping, 
+     * nothing holds on to the file afterwards, so it can be written again 
+     * right away and cutting it short cannot fault a later read.
+     * 
+     * @param target LST file of at most 2GB.
+     * @return the whole file.
+     * @throws IOException when the file cannot be read.
+     */
+    static ByteBuffer read(File target) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE)
+            {
+                throw new IOException("The file '" + target + "' is too large to be scanned.");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            //the file may have been cut short since its size was taken
+            while(buffer.hasRemaining())
+            {
+                if(channel.read(buffer) == -1)
+                {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+    
+    /**
+     * Scans the bytes between the position and the limit of the buffer. 
+     * The position is left untouched.
+     * 
+     * @param buffer text with one or more complete lines.
+     * @throws ListingException when a line holds an invalid change, the 
+     * line number counts all lines scanned by this scanner.
+     */
+    public void scan(ByteBuffer buffer)
+    {
+        int index = buffer.position();
+        int limit = buffer.limit();
+        while(index < limit)
+        {
+            index = line(buffer, index, limit);
+        }
+    }
+    
+    /**
+     * 
+     * @return the index of the first byte of the next line.
+     */
+    private int line(ByteBuffer buffer, int start, int limit)
+    {
+        lines++;
+        int index = start;
+        int offset = 0;
+        while(index < limit && isHex(buffer.get(index)))
+        {
+            offset = (offset << 4) | nibble(buffer.get(index));
+            index++;
+        }
+        int offsetDigits = index - start;
+        if(offsetDigits < MINIMUM_OFFSET_DIGITS)
+        {
+            return nextLine(buffer, index, limit);
+        }
+        while(index < limit && isBlank(buffer.get(index)))
+        {
+            index++;
+        }
+        int objectStart = index;
+        while(index < limit && isHex(buffer.get(index)))
+        {
+            index++;
+        }
+        int objectDigits = index - objectStart;
+        if(objectDigits == 0)
+        {
+            //--only offset found exception
+            String location = text(buffer, start, offsetDigits);
+            if(offsetDigits > MAXIMUM_OFFSET_DIGITS)
+            {
+                throw new ListingException(lines, "The offset '" + location + "' exceeds 6 characters and does not have changes attached.");
+            }
+            throw new ListingException(lines, "The offset '" + location + "' does not have changes attached.");
+        }
+        if(offsetDigits > MAXIMUM_OFFSET_DIGITS)
+        {
+            throw new ListingException(lines, "A change offset cannot exceed 3 bytes, or 24 bits; the read string '" + text(buffer, start, offsetDigits) + "' exceeds 6 characters.");
+        }
+        //--uneven exception
+        if(objectDigits % 2 == 1)
+        {
+            throw new ListingException(lines, "The change of the '" + text(buffer, start, offsetDigits) + "' offset, cannot be parsed: A hex digit is missing from either end (the total amount of digits is uneven).");
+        }
+        int size = objectDigits / 2;
+        byte[] data = new byte[size];
+        for(int i = 0, digit = objectStart; i < size; i++, digit += 2)
+        {
+            data[i] = (byte) ((nibble(buffer.get(digit)) << 4) | nibble(buffer.get(digit + 1)));
+        }
+        sink.change(offset, data);
+        return nextLine(buffer, index, limit);
+    }
+    
+    /**
+     * 
+     * @return the amount of lines scanned so far.
+     */
+    public int lines()
+    {
+        return lines;
+    }
+    
+    /**
+     * 
+     * @return the index of the first byte of the line after the one 
+     * holding the index.
+     */
+    static int nextLine(ByteBuffer buffer, int index, int limit)
+    {
+        while(index < limit)
+        {
+            byte current = buffer.get(index++);
+            if(current == '\n')
+            {
+                return index;
+            }
+            if(current == '\r')
+            {
+                if(index < limit && buffer.get(index) == '\n')
+                {
+                    index++;
+                }
+                return index;
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * A carriage return as the very last byte is not taken as a line end, 
+     * its line feed might still have to be read.
+     * 
+     * @return the index after the last line end, or the start when the 
+     * bytes hold no line end.
+     */
+    private static int lastLineEnd(ByteBuffer buffer, int start, int limit)
+    {
+        for(int index = limit - 1; index >= start; index--)
+        {
+            byte current = buffer.get(index);
+            if(current == '\n' || (current == '\r' && index < limit - 1))
+            {
+                return index + 1;
+            }
+        }
+        return start;
+    }
+    
+    private static String text(ByteBuffer buffer, int start, int length)
+    {
+        byte[] characters = new byte[length];
+        for(int i = 0; i < length; i++)
+        {
+            characters[i] = buffer.get(start + i);
+        }
+        return new String(characters, StandardCharsets.US_ASCII);
+    }
+    
+    private static boolean isBlank(byte character)
+    {
+        return character == ' ' || character == '\t';
+    }
+    
+    /**
+     * Only upper case digits count, like the LOC and OBJ columns assemblers 
+     * produce.
+     */
+    private static boolean isHex(byte character)
+    {
+        return (character >= '0' && character <= '9') || (character >= 'A' && character <= 'F');
+    }
+    
+    private static int nibble(byte digit)
+    {
+        return digit <= '9' ? digit - '0' : digit - 'A' + 10;
+    }
+    
+}
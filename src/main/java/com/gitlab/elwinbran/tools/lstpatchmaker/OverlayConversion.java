@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Lays the changes of several LST files over each other and writes them as 
+ * one IPS patch. The listings are scanned and coalesced concurrently, one 
+ * task per file; their records are then sorted together, checked for 
+ * overlaps between files in a single sweep and coalesced once more, so 
+ * touching changes from different listings share a record.
+ * 
+ * @author Elwin Slokker
+ */
+public class OverlayConversion
+{
+    
+    private OverlayConversion()
+    {
+    }
+    
+    /**
+     * 
+     * @param targets the LST files to combine.
+     * @param destination the IPS file to (over)write.
+     * @param processOutput receives the reason when the conversion fails.
+     * @return whether the patch was written.
+     */
+    public static boolean convert(List<File> targets, File destination, TextDisplay processOutput)
+    {
+        return convert(targets, destination, null, processOutput);
+    }
+    
+    /**
+     * 
+     * @param targets the LST files to combine.
+     * @param destination the IPS file to (over)write.
+     * @param bridger fills short gaps between the combined changes with the 
+     * base ROM, null to leave all gaps as they are.
+     * @param processOutput receives the reason when the conversion fails.
+     * @return whether the patch was written.
+     */
+    public static boolean convert(List<File> targets, File destination, GapBridger bridger, TextDisplay processOutput)
+    {
+        return convert(targets, destination, bridger, processOutput, new ConversionMetrics(targets, destination));
+    }
+    
+    /**
+     * Scanning all listings is timed as the 'scan' stage, sorting, checking 
+     * and merging their records as 'coalesce'.
+     * 
+     * @param targets the LST files to combine.
+     * @param destination the IPS file to (over)write.
+     * @param bridger fills short gaps between the combined changes with the 
+     * base ROM, null to leave all gaps as they are.
+     * @param processOutput receives the reason when the conversion fails.
+     * @param metrics receives the timings and counters of the conversion.
+     * @return whether the patch was written.
+     */
+    public static boolean convert(List<File> targets, File destination, GapBridger bridger, TextDisplay processOutput, ConversionMetrics metrics)
+    {
+        boolean successful = false;
+        metrics.begin();
+        try
+        {
+            successful = combine(targets, destination, bridger, processOutput, metrics);
+            return successful;
+        }
+        finally
+        {
+            metrics.end(successful);
+        }
+    }
+    
+    private static boolean combine(List<File> targets, File destination, GapBridger bridger, TextDisplay processOutput, ConversionMetrics metrics)
+    {
+        long start = System.nanoTime();
+        List<ForkJoinTask<Listing>> tasks = new ArrayList<>(targets.size());
+        for(File target : targets)
+        {
+            tasks.add(ForkJoinPool.commonPool().submit(() -> new Listing(target)));
+        }
+        List<String> failures = new ArrayList<>();
+        List<Owned> records = new ArrayList<>();
+        int lines = 0;
+        int changes = 0;
+        for(ForkJoinTask<Listing> task : tasks)
+        {
+            Listing listing = task.join();
+            if(listing.failure != null)
+            {
+                failures.add(listing.target + ": " + listing.failure);
+                continue;
+            }
+            lines += listing.lines;
+            changes += listing.image.changes();
+            for(Record record : listing.image.records())
+            {
+                records.add(new Owned(record, listing.target));
+            }
+        }
+        metrics.scanned(lines, changes);
+        metrics.stage(Conversion.SCAN_STAGE, System.nanoTime() - start);
+        if(!failures.isEmpty())
+        {
+            processOutput.show("Conversion failed! " + String.join(System.lineSeparator(), failures));
+            return false;
+        }
+        if(records.isEmpty())
+        {
+            processOutput.show("The target files did not contain any offset changes, deleting new IPS file.");
+            destination.delete();
+            return false;
+        }
+        start = System.nanoTime();
+        records.sort(Comparator.comparingInt(owned -> owned.record.offset()));
+        List<String> conflicts = conflicts(records);
+        if(!conflicts.isEmpty())
+        {
+            processOutput.show("Conversion failed! " + String.join(System.lineSeparator(), conflicts));
+            return false;
+        }
+        AddressImage merged = new AddressImage();
+        for(Owned owned : records)
+        {
+            merged.add(owned.record);
+        }
+        metrics.coalesced(changes - merged.size());
+        metrics.stage(Conversion.COALESCE_STAGE, System.nanoTime() - start);
+        Iterable<Record> patch = merged.runs();
+        if(bridger != null)
+        {
+            start = System.nanoTime();
+            patch = bridger.bridge(merged.records(), metrics);
+            metrics.stage(Conversion.BRIDGE_STAGE, System.nanoTime() - start);
+        }
+        start = System.nanoTime();
+        boolean written = Conversion.write(patch, destination, processOutput, metrics);
+        metrics.stage(Conversion.WRITE_STAGE, System.nanoTime() - start);
+        return written;
+    }
+    
+    /**
+     * Records of a single listing never overlap, so at any offset at most 
+     * one record per listing is still open; every record is compared with 
+     * all open records.
+     * 
+     * @param records all records, sorted on offset.
+     * @return a description of every overlap between two listings.
+     */
+    private static List<String> conflicts(List<Owned> records)
+    {
+        List<String> conflicts = new ArrayList<>();
+        List<Owned> open = new ArrayList<>();
+        for(Owned owned : records)
+        {
+            int offset = owned.record.offset();
+            open.removeIf(earlier -> earlier.record.end() <= offset);
+            for(Owned earlier : open)
+            {
+                conflicts.add(String.format("The change at 0x%06X up to 0x%06X in '%s' overlaps the change at 0x%06X up to 0x%06X in '%s'.",
+                        offset, owned.record.end() - 1, owned.target, 
+                        earlier.record.offset(), earlier.record.end() - 1, earlier.target));
+            }
+            open.add(owned);
+        }
+        return conflicts;
+    }
+    
+    /**
+     * The coalesced changes of a single LST file, or why it failed.
+     */
+    private static class Listing
+    {
+        private final File target;
+        
+        private AddressImage image;
+        
+        private int lines;
+        
+        private String failure;
+        
+        public Listing(File target)
+        {
+            this.target = target;
+            try
+            {
+                AddressImage changes = new AddressImage();
+                ParallelScanner scanner = new ParallelScanner(changes);
+                scanner.scan(target);
+                lines = scanner.lines();
+                image = changes;
+            }
+            catch(IOException | RuntimeException ex)
+            {
+                failure = ex.getMessage();
+            }
+        }
+    }
+    
+    private static class Owned
+    {
+        private final Record record;
+        
+        private final File target;
+        
+        public Owned(Record record, File target)
+        {
+            this.record = record;
+            this.target = target;
+        }
+    }
+    
+}
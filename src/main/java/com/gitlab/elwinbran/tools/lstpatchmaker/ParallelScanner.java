@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Scans large LST files on all processors. The mapped file is cut into 
+ * chunks of whole lines which are scanned on the common fork-join pool; 
+ * the changes of every chunk are handed to the sink in file order, exactly 
+ * as a single {@link LstScanner} would. Only a few chunks are in flight at 
+ * any moment, so memory does not grow with the file.
+ * 
+ * @author Elwin Slokker
+ */
+public class ParallelScanner
+{
+    private static final int CHUNK_SIZE = 1 << 22;
+    
+    private static final int CHUNKS_PER_THREAD = 2;
+    
+    private final ChangeSink sink;
+    
+    private final ConversionProgress progress;
+    
+    private final int chunkSize;
+    
+    private final ForkJoinPool pool;
+    
+    private int lines = 0;
+    
+    public ParallelScanner(ChangeSink sink)
+    {
+        this(sink, ConversionProgress.NONE);
+    }
+    
+    /**
+     * 
+     * @param sink receives the changes in file order.
+     * @param progress is told about every chunk handed to the sink.
+     */
+    public ParallelScanner(ChangeSink sink, ConversionProgress progress)
+    {
+        this(sink, progress, CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * 
+     * @param sink receives the changes in file order.
+     * @param progress is told about every chunk handed to the sink.
+     * @param chunkSize the least amount of bytes per chunk.
+     * @param pool scans the chunks, one with a parallelism below 2 makes 
+     * the scan sequential.
+     */
+    ParallelScanner(ChangeSink sink, ConversionProgress progress, int chunkSize, ForkJoinPool pool)
+    {
+        this.sink = sink;
+        this.progress = progress;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+    
+    /**
+     * 
+     * @param target LST file of at most 2GB.
+     * @throws IOException when the file cannot be read.
+     * @throws ListingException when a line holds an invalid change.
+     */
+    public void scan(File target) throws IOException
+    {
+        scan(LstScanner.map(target));
+    }
+    
+    /**
+     * 
+     * @param listing the LST file from index 0 up to its limit, the buffer 
+     * itself is left untouched so it can be scanned again.
+     * @throws ListingException when a line holds an invalid change.
+     */
+    public void scan(ByteBuffer listing)
+    {
+        ByteBuffer buffer = listing.duplicate();
+        int parallelism = pool.getParallelism();
+        if(buffer.limit() <= chunkSize || parallelism < 2)
+        {
+            scanSequentially(buffer);
+            return;
+        }
+        int window = parallelism * CHUNKS_PER_THREAD;
+        Deque<ForkJoinTask<Chunk>> pending = new ArrayDeque<>(window);
+        int start = 0;
+        try
+        {
+            while(start < buffer.limit() || !pending.isEmpty())
+            {
+                while(start < buffer.limit() && pending.size() < window)
+                {
+                    int end = LstScanner.nextLine(buffer, Math.min(start + chunkSize, buffer.limit()) - 1, buffer.limit());
+                    pending.add(pool.submit(chunk(buffer, start, end)));
+                    start = end;
+                }
+                Chunk chunk = pending.poll().join();
+                //the changes in front of a failure are handed over too
+                chunk.replay(sink);
+                int before = lines;
+                lines += chunk.lines;
+                if(chunk.failure != null)
+                {
+                    throw chunk.failure.after(before);
+                }
+                progress.scanned(chunk.end, lines);
+            }
+        }
+        finally
+        {
+            for(ForkJoinTask<Chunk> task : pending)
+            {
+                task.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Scans chunk after chunk on the calling thread, only so progress can 
+     * be reported in between.
+     */
+    private void scanSequentially(ByteBuffer buffer)
+    {
+        LstScanner scanner = new LstScanner(sink);
+        int limit = buffer.limit();
+        int start = 0;
+        try
+        {
+            while(start < limit)
+            {
+                int end = LstScanner.nextLine(buffer, Math.min(start + chunkSize, limit) - 1, limit);
+                buffer.limit(end);
+                buffer.position(start);
+                scanner.scan(buffer);
+                buffer.limit(limit);
+                start = end;
+                progress.scanned(end, scanner.lines());
+            }
+        }
+        finally
+        {
+            lines = scanner.lines();
+        }
+    }
+    
+    /**
+     * 
+     * @return the amount of lines handed to the sink so far.
+     */
+    public int lines()
+    {
+        return lines;
+    }
+    
+    private static ForkJoinTask<Chunk> chunk(ByteBuffer buffer, int start, int end)
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return ForkJoinTask.adapt(() -> 
+        {
+            Chunk chunk = new Chunk();
+            chunk.end = end;
+            LstScanner scanner = new LstScanner(chunk);
+            try
+            {
+                scanner.scan(slice);
+            }
+            catch(ListingException ex)
+            {
+                chunk.failure = ex;
+            }
+            chunk.lines = scanner.lines();
+            return chunk;
+        });
+    }
+    
+    /**
+     * The changes of one chunk, in the order they were found.
+     */
+    private static class Chunk implements ChangeSink
+    {
+        private int[] offsets = new int[1024];
+        
+        private byte[][] data = new byte[1024][];
+        
+        private int size = 0;
+        
+        private int lines;
+        
+        private int end;
+        
+        private ListingException failure;
+        
+        @Override
+        public void change(int offset, byte[] data)
+        {
+            if(size == offsets.length)
+            {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                this.data = Arrays.copyOf(this.data, size * 2);
+            }
+            offsets[size] = offset;
+            this.data[size] = data;
+            size++;
+        }
+        
+        public void replay(ChangeSink sink)
+        {
+            for(int i = 0; i < size; i++)
+            {
+                sink.change(offsets[i], data[i]);
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The LST to IPS conversion as a library, for tools that convert listings 
+ * inside their own JVM. One instance can be shared by any number of 
+ * threads; every thread keeps its own read and write buffers, which are 
+ * reused by all of its conversions. Failures are thrown instead of 
+ * displayed, an invalid listing throws a {@link ListingException}.
+ * 
+ * @author Elwin Slokker
+ */
+public class PatchMaker
+{
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    
+    private final GapBridger bridger;
+    
+    private final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+    
+    private final ThreadLocal<ByteBuffer> writeBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(IpsWriter.BUFFER_SIZE));
+    
+    public PatchMaker()
+    {
+        this(null);
+    }
+    
+    /**
+     * 
+     * @param bridger fills short gaps with the bytes of the base ROM, null 
+     * to leave all gaps as they are.
+     */
+    public PatchMaker(GapBridger bridger)
+    {
+        this.bridger = bridger;
+    }
+    
+    /**
+     * Converts a LST file into an IPS file, the file is memory mapped and 
+     * large ones are scanned in parallel. Nothing is visible at the 
+     * destination unless the whole patch was written.
+     * 
+     * @param listing the LST file to read.
+     * @param patch the IPS file to (over)write.
+     * @return size of the patch in bytes.
+     * @throws IOException when reading or writing fails.
+     * @throws RuntimeException when the listing has no changes or cannot 
+     * be expressed as a patch.
+     */
+    public long convert(Path listing, Path patch) throws IOException
+    {
+        Iterable<Record> records = patch(Conversion.image(listing.toFile()));
+        try(IpsWriter writer = IpsWriter.open(patch.toFile(), writeBuffers.get()))
+        {
+            return write(records, writer);
+        }
+    }
+    
+    /**
+     * 
+     * @param listing the LST file to read.
+     * @param patch receives the patch, it is not closed.
+     * @return size of the patch in bytes.
+     * @throws IOException when reading or writing fails.
+     * @throws RuntimeException when the listing has no changes or cannot 
+     * be expressed as a patch.
+     */
+    public long convert(Path listing, WritableByteChannel patch) throws IOException
+    {
+        Iterable<Record> records = patch(Conversion.image(listing.toFile()));
+        try(IpsWriter writer = IpsWriter.open(patch, writeBuffers.get()))
+        {
+            return write(records, writer);
+        }
+    }
+    
+    /**
+     * Reads the listing as it comes in, only its changes are kept in memory. 
+     * Nothing is written before the listing has been read completely.
+     * 
+     * @param listing a blocking channel holding the LST file, it is not closed.
+     * @param patch receives the patch, it is not closed.
+     * @return size of the patch in bytes.
+     * @throws IOException when reading or writing fails.
+     * @throws RuntimeException when the listing has no changes or cannot 
+     * be expressed as a patch.
+     */
+    public long convert(ReadableByteChannel listing, WritableByteChannel patch) throws IOException
+    {
+        Iterable<Record> records = patch(image(listing));
+        try(IpsWriter writer = IpsWriter.open(patch, writeBuffers.get()))
+        {
+            return write(records, writer);
+        }
+    }
+    
+    /**
+     * Reads the listing as it comes in, only its changes are kept in memory. 
+     * Nothing is visible at the destination unless the whole patch was 
+     * written.
+     * 
+     * @param listing a blocking channel holding the LST file, it is not closed.
+     * @param patch the IPS file to (over)write.
+     * @return size of the patch in bytes.
+     * @throws IOException when reading or writing fails.
+     * @throws RuntimeException when the listing has no changes or cannot 
+     * be expressed as a patch.
+     */
+    public long convert(ReadableByteChannel listing, Path patch) throws IOException
+    {
+        Iterable<Record> records = patch(image(listing));
+        try(IpsWriter writer = IpsWriter.open(patch.toFile(), writeBuffers.get()))
+        {
+            return write(records, writer);
+        }
+    }
+    
+    private AddressImage image(ReadableByteChannel listing) throws IOException
+    {
+        AddressImage image = new AddressImage();
+        readBuffers.set(new LstScanner(image).scan(listing, readBuffers.get()));
+        return image;
+    }
+    
+    /**
+     * Checks the changes before anything is written, so a failing 
+     * conversion never leaves part of a patch in a channel.
+     * 
+     * @return the records of the patch in ascending offset order.
+     */
+    private Iterable<Record> patch(AddressImage image)
+    {
+        if(image.isEmpty())
+        {
+            throw new RuntimeException("The listing did not contain any offset changes.");
+        }
+        if(bridger == null)
+        {
+            if(image.startsRun(IpsWriter.EOF_OFFSET))
+            {
+                throw eofOffset();
+            }
+            return image.runs();
+        }
+        List<Record> records = bridger.bridge(image.records());
+        for(Record record : records)
+        {
+            if(record.offset() == IpsWriter.EOF_OFFSET)
+            {
+                throw eofOffset();
+            }
+        }
+        return records;
+    }
+    
+    private static RuntimeException eofOffset()
+    {
+        return new RuntimeException("The listing contains a change for offset 0x454F46, which is incompatible with IPS.");
+    }
+    
+    private long write(Iterable<Record> records, IpsWriter writer) throws IOException
+    {
+        RecordEmitter emitter = new RecordEmitter(writer);
+        for(Record record : records)
+        {
+            emitter.emit(record);
+        }
+        writer.commit();
+        return writer.size();
+    }
+    
+}
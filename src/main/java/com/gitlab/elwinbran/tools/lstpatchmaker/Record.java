@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.util.Arrays;
+
+/**
+ * A run of consecutive changes, backed by a growable byte array of which 
+ * only the first {@link #length()} bytes are in use.
+ * 
+ * @author Elwin Slokker
+ */
+public class Record
+{
+    private final int offset;
+    
+    private byte[] data;
+    
+    private int length;
+    
+    /**
+     * 
+     * @param offset the location of the first changed byte.
+     * @param data the changes, this array is never written to.
+     */
+    public Record(int offset, byte[] data)
+    {
+        this.offset = offset;
+        this.data = data;
+        this.length = data.length;
+    }
+    
+    /**
+     * 
+     * @param offset the location of the first changed byte.
+     * @param data the changes, appending to the record writes past the 
+     * length into this array while it has room.
+     * @param length the amount of changes at the start of the array.
+     */
+    Record(int offset, byte[] data, int length)
+    {
+        this.offset = offset;
+        this.data = data;
+        this.length = length;
+    }
+    
+    public int offset()
+    {
+        return this.offset;
+    }
+    
+    public int end()
+    {
+        return this.length + this.offset;
+    }
+    
+    public int length()
+    {
+        return this.length;
+    }
+    
+    /**
+     * @return the backing array, only valid up to {@link #length()}.
+     */
+    public byte[] data()
+    {
+        return this.data;
+    }
+    
+    public void append(Record following)
+    {
+        append(following.data, following.length);
+    }
+    
+    public void append(byte[] bytes)
+    {
+        append(bytes, bytes.length);
+    }
+    
+    /**
+     * Grows the backing array geometrically, so repeated merges into 
+     * the same record copy every byte only a constant amount of times.
+     * The array handed to the constructor is never written to.
+     */
+    private void append(byte[] bytes, int count)
+    {
+        int required = this.length + count;
+        if(required > this.data.length)
+        {
+            this.data = Arrays.copyOf(this.data, Math.max(required, this.data.length * 2));
+        }
+        System.arraycopy(bytes, 0, this.data, this.length, count);
+        this.length = required;
+    }
+    
+}
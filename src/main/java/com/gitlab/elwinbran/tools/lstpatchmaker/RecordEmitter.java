@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.IOException;
+
+/**
+ * Turns runs of changes of any length into the smallest set of IPS records 
+ * it can find in one pass. Runs longer than a record can hold are split, 
+ * repeated bytes become run-length encoded records whenever that takes 
+ * less space than writing them out. No record is ever made to start at 
+ * {@link IpsWriter#EOF_OFFSET}.
+ * 
+ * @author Elwin Slokker
+ */
+public class RecordEmitter
+{
+    private final RecordSink writer;
+    
+    private final ConversionProgress progress;
+    
+    private int records = 0;
+    
+    private int repeats = 0;
+    
+    public RecordEmitter(RecordSink writer)
+    {
+        this(writer, ConversionProgress.NONE);
+    }
+    
+    /**
+     * 
+     * @param writer receives the records.
+     * @param progress is told about every record written.
+     */
+    public RecordEmitter(RecordSink writer, ConversionProgress progress)
+    {
+        this.writer = writer;
+        this.progress = progress;
+    }
+    
+    public void emit(Record record) throws IOException
+    {
+        emit(record.offset(), record.data(), 0, record.length());
+    }
+    
+    /**
+     * 
+     * @param offset location of the first byte of the run, must not be 
+     * {@link IpsWriter#EOF_OFFSET}.
+     * @param data array holding the changes.
+     * @param from index of the first change in the array.
+     * @param length amount of changes.
+     * @throws IOException when writing fails.
+     */
+    public void emit(int offset, byte[] data, int from, int length) throws IOException
+    {
+        if((long) offset + length > IpsWriter.ADDRESS_SPACE)
+        {
+            throw new RuntimeException(String.format("The change at 0x%06X runs past the 24 bit offsets of the IPS format.", offset));
+        }
+        int end = from + length;
+        int literal = from;
+        int index = from;
+        while(index < end)
+        {
+            int repeat = index + 1;
+            while(repeat < end && data[repeat] == data[index])
+            {
+                repeat++;
+            }
+            //a record after the repeat would start at EOF, leave that byte to it
+            if(repeat < end && offset + (repeat - from) == IpsWriter.EOF_OFFSET)
+            {
+                repeat--;
+            }
+            if(offset + (index - from) != IpsWriter.EOF_OFFSET 
+                    && repeat - index > threshold(index > literal, repeat < end))
+            {
+                literal(offset + (literal - from), data, literal, index - literal);
+                repeat(offset + (index - from), repeat - index, data[index]);
+                literal = repeat;
+            }
+            index = Math.max(repeat, index + 1);
+        }
+        literal(offset + (literal - from), data, literal, end - literal);
+    }
+    
+    /**
+     * 
+     * @return the amount of records written, run-length encoded ones 
+     * included.
+     */
+    public int records()
+    {
+        return records;
+    }
+    
+    /**
+     * 
+     * @return the amount of run-length encoded records written.
+     */
+    public int repeats()
+    {
+        return repeats;
+    }
+    
+    /**
+     * A repeat taken out of a run costs a whole RLE record instead of its 
+     * bytes, plus a header for every piece of the run it splits off.
+     * 
+     * @return the amount of repeated bytes that have to be exceeded before 
+     * an RLE record is smaller.
+     */
+    private static int threshold(boolean before, boolean after)
+    {
+        int splitOff = (before ? IpsWriter.RECORD_HEADER_SIZE : 0) + (after ? IpsWriter.RECORD_HEADER_SIZE : 0);
+        return IpsWriter.RLE_RECORD_SIZE - IpsWriter.RECORD_HEADER_SIZE + splitOff;
+    }
+    
+    private void literal(int offset, byte[] data, int from, int length) throws IOException
+    {
+        while(length > 0)
+        {
+            int size = chunk(offset, length);
+            writer.write(offset, data, from, size);
+            records++;
+            progress.written(records);
+            offset += size;
+            from += size;
+            length -= size;
+        }
+    }
+    
+    private void repeat(int offset, int count, byte value) throws IOException
+    {
+        while(count > 0)
+        {
+            int size = chunk(offset, count);
+            writer.writeRepeat(offset, size, value);
+            records++;
+            repeats++;
+            progress.written(records);
+            offset += size;
+            count -= size;
+        }
+    }
+    
+    /**
+     * 
+     * @return the size of the next record, such that the one after it does 
+     * not start at {@link IpsWriter#EOF_OFFSET}.
+     */
+    private static int chunk(int offset, int remaining)
+    {
+        int size = Math.min(remaining, IpsWriter.MAXIMUM_RECORD_SIZE);
+        if(size < remaining && offset + size == IpsWriter.EOF_OFFSET)
+        {
+            size--;
+        }
+        return size;
+    }
+    
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.IOException;
+
+/**
+ * Receives finished IPS records.
+ * 
+ * @author Elwin Slokker
+ */
+public interface RecordSink
+{
+    /**
+     * 
+     * @param offset location of the first byte of the record.
+     * @param data array holding the changes.
+     * @param from index of the first change in the array.
+     * @param length amount of changes, from 1 up to 65535.
+     * @throws IOException when writing fails.
+     */
+    void write(int offset, byte[] data, int from, int length) throws IOException;
+    
+    /**
+     * 
+     * @param offset location of the first byte of the record.
+     * @param count amount of bytes to set, from 1 up to 65535.
+     * @param value the byte to repeat.
+     * @throws IOException when writing fails.
+     */
+    void writeRepeat(int offset, int count, byte value) throws IOException;
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes the changes of a LST file as records while it is being scanned, 
+ * which works as long as every change comes after the previous one. 
+ * Touching changes are gathered in a single reused buffer, a record is 
+ * written as soon as the next change leaves a gap, so memory use does not 
+ * grow with the listing.
+ * The scan stops early when a change comes before the end of the previous 
+ * one, or a record would start at {@link IpsWriter#EOF_OFFSET}; the 
+ * caller then has to fall back to sorting all changes in memory, where a 
+ * later change may still extend that record backwards.
+ * 
+ * @author Elwin Slokker
+ */
+public class StreamingCoalescer implements ChangeSink
+{
+    private static final int INITIAL_BUFFER_SIZE = 1 << 12;
+    
+    private final RecordEmitter emitter;
+    
+    private byte[] run = new byte[INITIAL_BUFFER_SIZE];
+    
+    private int runOffset;
+    
+    private int runLength = 0;
+    
+    private int changes = 0;
+    
+    private int merges = 0;
+    
+    private int lines = 0;
+    
+    private boolean outOfOrder = false;
+    
+    private boolean eofOffset = false;
+    
+    public StreamingCoalescer(RecordEmitter emitter)
+    {
+        this.emitter = emitter;
+    }
+    
+    /**
+     * Scans the whole target and writes all records, unless it had to stop.
+     * 
+     * @param target LST file to scan.
+     * @return false when the scan stopped early, see {@link #isOutOfOrder()} 
+     * and {@link #hasEofOffset()}.
+     * @throws IOException when reading or writing fails.
+     */
+    public boolean stream(File target) throws IOException
+    {
+        return stream(target, ConversionProgress.NONE);
+    }
+    
+    /**
+     * Scans the whole target and writes all records, unless it had to stop.
+     * 
+     * @param target LST file to scan.
+     * @param progress is told about the lines scanned.
+     * @return false when the scan stopped early, see {@link #isOutOfOrder()} 
+     * and {@link #hasEofOffset()}.
+     * @throws IOException when reading or writing fails.
+     */
+    public boolean stream(File target, ConversionProgress progress) throws IOException
+    {
+        return stream(LstScanner.map(target), progress);
+    }
+    
+    /**
+     * Scans the whole listing and writes all records, unless it had to stop.
+     * 
+     * @param listing the LST file from index 0 up to its limit, it is left 
+     * untouched.
+     * @param progress is told about the lines scanned.
+     * @return false when the scan stopped early, see {@link #isOutOfOrder()} 
+     * and {@link #hasEofOffset()}.
+     * @throws IOException when writing fails.
+     */
+    public boolean stream(ByteBuffer listing, ConversionProgress progress) throws IOException
+    {
+        ParallelScanner scanner = new ParallelScanner(this, progress);
+        try
+        {
+            scanner.scan(listing);
+            emit();
+            return true;
+        }
+        catch(Stop stop)
+        {
+            return false;
+        }
+        catch(UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+        finally
+        {
+            lines = scanner.lines();
+        }
+    }
+    
+    @Override
+    public void change(int offset, byte[] data)
+    {
+        changes++;
+        if(runLength > 0 && offset != runOffset + runLength)
+        {
+            if(offset < runOffset + runLength)
+            {
+                outOfOrder = true;
+                throw Stop.INSTANCE;
+            }
+            try
+            {
+                emit();
+            }
+            catch(IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        if(runLength == 0)
+        {
+            runOffset = offset;
+        }
+        else
+        {
+            merges++;
+        }
+        int required = runLength + data.length;
+        if(required > run.length)
+        {
+            run = Arrays.copyOf(run, Math.max(required, run.length * 2));
+        }
+        System.arraycopy(data, 0, run, runLength, data.length);
+        runLength = required;
+    }
+    
+    /**
+     * 
+     * @return the amount of changes seen.
+     */
+    public int changes()
+    {
+        return changes;
+    }
+    
+    /**
+     * 
+     * @return the amount of changes that were joined to the one before.
+     */
+    public int merges()
+    {
+        return merges;
+    }
+    
+    /**
+     * 
+     * @return the amount of lines scanned.
+     */
+    public int lines()
+    {
+        return lines;
+    }
+    
+    /**
+     * 
+     * @return whether the scan stopped at a change before the end of the 
+     * previous one.
+     */
+    public boolean isOutOfOrder()
+    {
+        return outOfOrder;
+    }
+    
+    /**
+     * 
+     * @return whether the scan stopped at a record starting at 
+     * {@link IpsWriter#EOF_OFFSET}.
+     */
+    public boolean hasEofOffset()
+    {
+        return eofOffset;
+    }
+    
+    private void emit() throws IOException
+    {
+        if(runLength == 0)
+        {
+            return;
+        }
+        if(runOffset == IpsWriter.EOF_OFFSET)
+        {
+            eofOffset = true;
+            throw Stop.INSTANCE;
+        }
+        emitter.emit(runOffset, run, 0, runLength);
+        runLength = 0;
+    }
+    
+    /**
+     * Unwinds the scanner, carries no stack trace.
+     */
+    private static class Stop extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private static final Stop INSTANCE = new Stop();
+        
+        private Stop()
+        {
+            super(null, null, false, false);
+        }
+    }
+    
+}
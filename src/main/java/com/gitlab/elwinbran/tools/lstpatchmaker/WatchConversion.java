@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps converting LST files whenever they change, so the JVM stays warm 
+ * between builds. Every file is converted once at the start; after that 
+ * only the listings that changed are converted again, once a burst of file 
+ * events has settled. A changed listing is parsed again in full, nothing 
+ * of the previous conversion is kept. Directories are watched as a whole, 
+ * LST files that appear in them later are picked up too. A converter that 
+ * is {@link Flushable}, like {@link ConversionCache}, is flushed after 
+ * every round. A failing conversion is reported and watching goes on, 
+ * also when a file was cut short while it was being read.
+ * 
+ * @author Elwin Slokker
+ */
+public class WatchConversion
+{
+    /**
+     * Assemblers write a listing in many small writes, the events of a 
+     * single save can lie more than a few milliseconds apart.
+     */
+    private static final long DEBOUNCE_MILLISECONDS = 150;
+    
+    private final Converter converter;
+    
+    private final TextDisplay processOutput;
+    
+    private final Set<Path> targets = new HashSet<>();
+    
+    private final List<Path> trees = new ArrayList<>();
+    
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    
+    private final WatchService watcher;
+    
+    /**
+     * 
+     * @param locations LST files, directories or glob patterns to watch.
+     * @param converter converts a single listing.
+     * @param processOutput receives a line for every conversion.
+     * @throws IOException when the locations cannot be watched.
+     */
+    public WatchConversion(List<String> locations, Converter converter, TextDisplay processOutput) throws IOException
+    {
+        this.converter = converter;
+        this.processOutput = processOutput;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        for(String location : locations)
+        {
+            Path path = Paths.get(location).toAbsolutePath().normalize();
+            if(!BatchConversion.isGlob(location) && Files.isDirectory(path))
+            {
+                trees.add(path);
+                register(path);
+            }
+        }
+        for(File target : BatchConversion.targets(locations))
+        {
+            Path path = target.toPath().toAbsolutePath().normalize();
+            targets.add(path);
+            if(!directories.containsValue(path.getParent()))
+            {
+                directories.put(path.getParent().register(watcher, 
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), path.getParent());
+            }
+        }
+    }
+    
+    /**
+     * Converts all listings, then waits for changes until interrupted.
+     * 
+     * @throws IOException when a new directory cannot be watched.
+     */
+    public void watch() throws IOException
+    {
+        convert(new TreeSet<>(targets));
+        flush();
+        processOutput.show("Watching " + targets.size() + " LST files for changes." + System.lineSeparator());
+        try
+        {
+            while(true)
+            {
+                Set<Path> changed = new TreeSet<>();
+                WatchKey key = watcher.take();
+                while(key != null)
+                {
+                    changed(key, changed);
+                    key = watcher.poll(DEBOUNCE_MILLISECONDS, TimeUnit.MILLISECONDS);
+                }
+                convert(changed);
+                flush();
+            }
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            watcher.close();
+        }
+    }
+    
+    private void changed(WatchKey key, Set<Path> changed) throws IOException
+    {
+        Path directory = directories.get(key);
+        for(WatchEvent<?> event : key.pollEvents())
+        {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                changed.addAll(targets);
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            boolean inTree = isInTree(path);
+            if(inTree && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+            {
+                register(path);
+                try(Stream<Path> walk = Files.walk(path))
+                {
+                    changed.addAll(walk.filter(BatchConversion::isListing).collect(Collectors.toList()));
+                }
+            }
+            else if(targets.contains(path) || (inTree && BatchConversion.isListing(path)))
+            {
+                changed.add(path);
+            }
+        }
+        if(!key.reset())
+        {
+            directories.remove(key);
+        }
+    }
+    
+    /**
+     * Saves what the converter keeps, so a watch that is killed loses 
+     * nothing.
+     */
+    private void flush()
+    {
+        if(converter instanceof Flushable)
+        {
+            try
+            {
+                ((Flushable) converter).flush();
+            }
+            catch(IOException ex)
+            {
+                processOutput.show("The cache could not be saved: " + ex.getMessage() + System.lineSeparator());
+            }
+        }
+    }
+    
+    private void convert(Set<Path> changed)
+    {
+        for(Path path : changed)
+        {
+            if(!Files.isRegularFile(path))
+            {
+                continue;
+            }
+            targets.add(path);
+            File target = path.toFile();
+            TextDisplay fileOutput = input -> processOutput.show(target + ": " + input + System.lineSeparator());
+            long start = System.nanoTime();
+            try
+            {
+                if(converter.convert(target, BatchConversion.destination(target), fileOutput))
+                {
+                    long microseconds = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                    processOutput.show(target + ": converted in " + (microseconds / 1000.0) + " ms" + System.lineSeparator());
+                }
+            }
+            //a mapped file cut short, like the base ROM, faults with an InternalError
+            catch(RuntimeException | InternalError ex)
+            {
+                fileOutput.show(ex.getMessage());
+            }
+        }
+    }
+    
+    private boolean isInTree(Path path)
+    {
+        for(Path tree : trees)
+        {
+            if(path.startsWith(tree))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Watches the directory and all directories below it.
+     */
+    private void register(Path root) throws IOException
+    {
+        try(Stream<Path> walk = Files.walk(root))
+        {
+            for(Path directory : walk.filter(Files::isDirectory).collect(Collectors.toList()))
+            {
+                if(!directories.containsValue(directory))
+                {
+                    directories.put(directory.register(watcher, 
+                            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+                }
+            }
+        }
+    }
+    
+}
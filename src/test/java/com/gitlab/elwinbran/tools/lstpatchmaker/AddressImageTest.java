@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that runs are found across the word and page boundaries of the 
+ * bitmaps, up to the very last address, and that overlaps are refused.
+ * 
+ * @author Elwin Slokker
+ */
+public class AddressImageTest
+{
+    private static final int LAST_ADDRESS = IpsWriter.ADDRESS_SPACE - 1;
+    
+    @Test
+    public void emptyImageHasNoRuns()
+    {
+        AddressImage image = new AddressImage();
+        assertTrue(image.isEmpty());
+        assertEquals(0, image.size());
+        assertFalse(image.runs().iterator().hasNext());
+    }
+    
+    @Test
+    public void runCrossesWordBoundary()
+    {
+        AddressImage image = new AddressImage();
+        image.add(60, bytes(10, 1));
+        assertEquals("0x00003C:10", describe(image.records()));
+    }
+    
+    @Test
+    public void touchingChangesJoinAcrossWordBoundary()
+    {
+        AddressImage image = new AddressImage();
+        image.add(64, bytes(2, 5));
+        image.add(60, bytes(4, 1));
+        assertEquals("0x00003C:6", describe(image.records()));
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, first(image.records()));
+        assertEquals(1, image.merges());
+    }
+    
+    @Test
+    public void runCrossesPageBoundary()
+    {
+        AddressImage image = new AddressImage();
+        byte[] data = bytes(5000, 0);
+        image.add(0x0FFE, data);
+        assertEquals("0x000FFE:5000", describe(image.records()));
+        assertArrayEquals(data, first(image.records()));
+    }
+    
+    @Test
+    public void touchingChangesJoinAcrossPageBoundary()
+    {
+        AddressImage image = new AddressImage();
+        image.add(0x2000, bytes(3, 4));
+        image.add(0x1FFD, bytes(3, 1));
+        assertEquals("0x001FFD:6", describe(image.records()));
+        assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, first(image.runs()));
+    }
+    
+    @Test
+    public void runEndsOnPageBoundary()
+    {
+        AddressImage image = new AddressImage();
+        image.add(0x0FC0, bytes(64, 0));
+        image.add(0x1001, bytes(1, 0));
+        assertEquals("0x000FC0:64 0x001001:1", describe(image.records()));
+        assertEquals(2, image.size());
+    }
+    
+    @Test
+    public void runsAreFoundAcrossEmptyPages()
+    {
+        AddressImage image = new AddressImage();
+        image.add(0x000000, bytes(1, 0));
+        image.add(0x800000, bytes(1, 0));
+        image.add(0x000002, bytes(1, 0));
+        assertEquals("0x000000:1 0x000002:1 0x800000:1", describe(image.records()));
+        assertEquals(3, image.size());
+        assertEquals(0, image.merges());
+    }
+    
+    @Test
+    public void lastAddressCanBeChanged()
+    {
+        AddressImage image = new AddressImage();
+        image.add(LAST_ADDRESS - 2, bytes(3, 7));
+        assertEquals("0xFFFFFD:3", describe(image.records()));
+        assertArrayEquals(new byte[] {7, 8, 9}, first(image.runs()));
+    }
+    
+    @Test
+    public void lastAddressAlone()
+    {
+        AddressImage image = new AddressImage();
+        image.add(LAST_ADDRESS, bytes(1, 7));
+        assertEquals("0xFFFFFF:1", describe(image.runs()));
+    }
+    
+    @Test
+    public void onlyTheFirstAddressOfARunStartsIt()
+    {
+        AddressImage image = new AddressImage();
+        image.add(0, bytes(2, 0));
+        image.add(IpsWriter.EOF_OFFSET - 1, bytes(2, 0));
+        assertTrue(image.startsRun(0));
+        assertFalse(image.startsRun(1));
+        assertTrue(image.startsRun(IpsWriter.EOF_OFFSET - 1));
+        assertFalse(image.startsRun(IpsWriter.EOF_OFFSET));
+        assertFalse(image.startsRun(IpsWriter.EOF_OFFSET + 1));
+    }
+    
+    @Test
+    public void changePastLastAddressIsRefused()
+    {
+        AddressImage image = new AddressImage();
+        try
+        {
+            image.add(LAST_ADDRESS, bytes(2, 0));
+            fail("A change past the address space was accepted.");
+        }
+        catch(RuntimeException ex)
+        {
+            assertEquals("The change at 0xFFFFFF runs past the 24 bit offsets of the IPS format.", ex.getMessage());
+        }
+        assertTrue(image.isEmpty());
+    }
+    
+    @Test
+    public void overwritingAByteIsRefused()
+    {
+        AddressImage image = new AddressImage();
+        image.add(0x0FFE, bytes(4, 0));
+        try
+        {
+            image.add(0x1001, bytes(4, 0));
+            fail("An overlapping change was accepted.");
+        }
+        catch(RuntimeException ex)
+        {
+            assertEquals("The change at 0x001001 up to 0x001004 overlaps the earlier changes at 0x000FFE up to 0x001001.", 
+                    ex.getMessage());
+        }
+        //the refused change left nothing behind
+        assertEquals("0x000FFE:4", describe(image.records()));
+        assertEquals(1, image.changes());
+    }
+    
+    @Test
+    public void overwritingTheSameByteIsRefused()
+    {
+        AddressImage image = new AddressImage();
+        image.add(LAST_ADDRESS, bytes(1, 0));
+        try
+        {
+            image.add(LAST_ADDRESS, bytes(1, 0));
+            fail("An overlapping change was accepted.");
+        }
+        catch(RuntimeException ex)
+        {
+            assertEquals("The change at 0xFFFFFF up to 0xFFFFFF overlaps the earlier changes at 0xFFFFFF up to 0xFFFFFF.", 
+                    ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void recordsAreCopies()
+    {
+        AddressImage image = new AddressImage();
+        image.add(0x10, bytes(2, 1));
+        image.add(0x20, bytes(2, 3));
+        List<Record> records = new ArrayList<>();
+        for(Record record : image.records())
+        {
+            records.add(record);
+        }
+        assertArrayEquals(new byte[] {1, 2}, Arrays.copyOf(records.get(0).data(), records.get(0).length()));
+        assertArrayEquals(new byte[] {3, 4}, Arrays.copyOf(records.get(1).data(), records.get(1).length()));
+    }
+    
+    @Test
+    public void runsGrowTheirBuffer()
+    {
+        AddressImage image = new AddressImage();
+        byte[] small = bytes(3, 1);
+        byte[] large = bytes(3 * 4096 + 1, 9);
+        image.add(0x10, small);
+        image.add(0x20000, large);
+        image.add(0x40000, small);
+        assertEquals(describe(image.records()), describe(image.runs()));
+        List<byte[]> runs = new ArrayList<>();
+        for(Record record : image.runs())
+        {
+            runs.add(Arrays.copyOf(record.data(), record.length()));
+        }
+        assertArrayEquals(small, runs.get(0));
+        assertArrayEquals(large, runs.get(1));
+        assertArrayEquals(small, runs.get(2));
+    }
+    
+    /**
+     * 
+     * @return bytes counting up from the first value.
+     */
+    private static byte[] bytes(int length, int first)
+    {
+        byte[] data = new byte[length];
+        for(int index = 0; index < length; index++)
+        {
+            data[index] = (byte) (first + index);
+        }
+        return data;
+    }
+    
+    private static byte[] first(Iterable<Record> records)
+    {
+        Record record = records.iterator().next();
+        return Arrays.copyOf(record.data(), record.length());
+    }
+    
+    /**
+     * 
+     * @return every record as its offset and length.
+     */
+    private static String describe(Iterable<Record> records)
+    {
+        List<String> runs = new ArrayList<>();
+        for(Record record : records)
+        {
+            runs.add(String.format("0x%06X:%d", record.offset(), record.length()));
+        }
+        return String.join(" ", runs);
+    }
+    
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CancellationException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Converts the same listings through the file route, which streams until 
+ * it has to sort in memory, and through {@link PatchMaker} reading a 
+ * channel, which always sorts in memory. Both have to agree.
+ * 
+ * @author Elwin Slokker
+ */
+public class ConversionTest
+{
+    @Test
+    public void runAtEofOffsetExtendedBackwardsIsConverted() throws IOException
+    {
+        String listing = "454F46 AA\n500000 BB\n454F45 CC\n";
+        byte[] expected = Patches.patch(Patches.record(0x454F45, 0xCC, 0xAA), Patches.record(0x500000, 0xBB));
+        assertArrayEquals(expected, convertFile(listing));
+        assertArrayEquals(expected, convertChannel(listing));
+    }
+    
+    @Test
+    public void runAtEofOffsetIsRefused() throws IOException
+    {
+        String listing = "454F46 AA\n500000 BB\n";
+        assertEquals(null, convertFile(listing));
+        try
+        {
+            convertChannel(listing);
+            fail("A record at 0x454F46 was written.");
+        }
+        catch(RuntimeException ex)
+        {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("0x454F46"));
+        }
+    }
+    
+    @Test
+    public void unsortedListingIsConvertedTheSame() throws IOException
+    {
+        String listing = "0010 7401\n0000 AABB\n0012 F5F0\n0002 CC\n";
+        byte[] expected = Patches.patch(Patches.record(0x0000, 0xAA, 0xBB, 0xCC), Patches.record(0x0010, 0x74, 0x01, 0xF5, 0xF0));
+        assertArrayEquals(expected, convertFile(listing));
+        assertArrayEquals(expected, convertFile(listing, false));
+        assertArrayEquals(expected, convertChannel(listing));
+    }
+    
+    @Test
+    public void readListingIsConvertedLikeAMappedOne() throws IOException
+    {
+        String listing = "0000 AABB\n0002 CC\n0010 7401\n";
+        assertArrayEquals(convertFile(listing), convertFile(listing, false));
+    }
+    
+    @Test
+    public void stopRightBeforeCommitLeavesDestinationAlone() throws IOException
+    {
+        //streamed and sorted in memory
+        assertStoppedBeforeCommit("0000 AABB\n0010 7401\n");
+        assertStoppedBeforeCommit("0010 7401\n0000 AABB\n");
+    }
+    
+    private static void assertStoppedBeforeCommit(String listing) throws IOException
+    {
+        File directory = Files.createTempDirectory("conversion").toFile();
+        directory.deleteOnExit();
+        File target = new File(directory, "listing.lst");
+        target.deleteOnExit();
+        Files.write(target.toPath(), listing.getBytes(StandardCharsets.US_ASCII));
+        File destination = new File(directory, "listing.ips");
+        destination.deleteOnExit();
+        byte[] old = {1, 2, 3};
+        Files.write(destination.toPath(), old);
+        ConversionMetrics metrics = new ConversionMetrics(target, destination, new ConversionProgress()
+        {
+            @Override
+            public void finishing()
+            {
+                throw new CancellationException();
+            }
+        });
+        try
+        {
+            Conversion.convert(target, destination, new StringBuilder()::append, metrics);
+            fail("The conversion was not stopped.");
+        }
+        catch(CancellationException ex)
+        {
+            assertArrayEquals(old, Files.readAllBytes(destination.toPath()));
+            assertEquals(2, directory.list().length);
+        }
+    }
+    
+    /**
+     * 
+     * @return the patch, or null when the conversion failed and left no 
+     * destination behind.
+     */
+    private static byte[] convertFile(String listing) throws IOException
+    {
+        return convertFile(listing, true);
+    }
+    
+    /**
+     * 
+     * @param mapped whether the listing is memory mapped or read.
+     * @return the patch, or null when the conversion failed and left no 
+     * destination behind.
+     */
+    private static byte[] convertFile(String listing, boolean mapped) throws IOException
+    {
+        File target = File.createTempFile("listing", ".lst");
+        target.deleteOnExit();
+        Files.write(target.toPath(), listing.getBytes(StandardCharsets.US_ASCII));
+        File destination = new File(target.getPath() + ".ips");
+        destination.deleteOnExit();
+        StringBuilder messages = new StringBuilder();
+        if(!Conversion.convert(target, destination, null, messages::append, new ConversionMetrics(target, destination), mapped))
+        {
+            assertFalse(messages.toString(), destination.exists());
+            return null;
+        }
+        return Files.readAllBytes(destination.toPath());
+    }
+    
+    private static byte[] convertChannel(String listing) throws IOException
+    {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        new PatchMaker().convert(Channels.newChannel(new ByteArrayInputStream(listing.getBytes(StandardCharsets.US_ASCII))), 
+                Channels.newChannel(patch));
+        return patch.toByteArray();
+    }
+    
+}
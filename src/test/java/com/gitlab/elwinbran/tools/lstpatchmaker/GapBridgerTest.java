@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bridges records over small base ROMs. Every bridged patch has to be at 
+ * most as large as the unbridged one and has to give the same image when 
+ * applied to the ROM.
+ * 
+ * @author Elwin Slokker
+ */
+public class GapBridgerTest
+{
+    private static final int ROM_SIZE = 256;
+    
+    @Test
+    public void gapsUpToFourBytesAreBridged() throws IOException
+    {
+        byte[] rom = rom(new Random(30));
+        for(int gap = 1; gap <= GapBridger.MAXIMUM_GAP; gap++)
+        {
+            List<Record> records = records(new Record(16, counting(1, 6)), new Record(22 + gap, counting(40, 6)));
+            List<Record> bridged = assertBridged(rom, records);
+            assertEquals(1, bridged.size());
+            assertEquals(12 + gap, bridged.get(0).length());
+        }
+    }
+    
+    @Test
+    public void gapOfFiveBytesIsLeft() throws IOException
+    {
+        byte[] rom = rom(new Random(31));
+        List<Record> records = records(new Record(16, counting(1, 6)), new Record(27, counting(40, 6)));
+        assertEquals(2, assertBridged(rom, records).size());
+    }
+    
+    @Test
+    public void gapPastTheEndOfTheRomIsLeft() throws IOException
+    {
+        byte[] rom = rom(new Random(32));
+        //the gap ends exactly at the end of the ROM
+        List<Record> inside = records(new Record(ROM_SIZE - 8, counting(1, 6)), new Record(ROM_SIZE, counting(40, 3)));
+        assertEquals(1, assertBridged(rom, inside).size());
+        //the gap lies partly past it
+        List<Record> outside = records(new Record(ROM_SIZE - 7, counting(1, 6)), new Record(ROM_SIZE + 1, counting(40, 3)));
+        assertEquals(2, assertBridged(rom, outside).size());
+    }
+    
+    @Test
+    public void joinsStayWithinARecord() throws IOException
+    {
+        byte[] rom = new byte[1 << 17];
+        new Random(33).nextBytes(rom);
+        int size = IpsWriter.MAXIMUM_RECORD_SIZE;
+        List<Record> fits = records(new Record(0, counting(0, size - 2)), new Record(size - 1, counting(7, 1)));
+        List<Record> bridged = assertBridged(rom, fits);
+        assertEquals(1, bridged.size());
+        assertEquals(size, bridged.get(0).length());
+        List<Record> tooLong = records(new Record(0, counting(0, size - 1)), new Record(size, counting(7, 1)));
+        assertEquals(2, assertBridged(rom, tooLong).size());
+    }
+    
+    @Test
+    public void repeatsNextToAGapAreOnlyJoinedWhenSmaller() throws IOException
+    {
+        byte[] rom = rom(new Random(34));
+        rom[40] = 0x11;
+        rom[41] = 0x22;
+        //two RLE records apart are smaller than RLE, literal and RLE joined
+        List<Record> differing = records(new Record(20, repeat(20, 0x55)), new Record(42, repeat(20, 0x55)));
+        assertEquals(2, assertBridged(rom, differing).size());
+        //a gap holding the repeated byte makes a single RLE record
+        rom[40] = 0x55;
+        rom[41] = 0x55;
+        assertEquals(1, assertBridged(rom, differing).size());
+        //a literal ending in a repeat, which joined to a following repeat 
+        //becomes a single longer RLE record
+        byte[] mixed = Arrays.copyOf(counting(1, 4), 14);
+        Arrays.fill(mixed, 4, 14, (byte) 0x55);
+        assertEquals(1, assertBridged(rom, records(new Record(26, mixed), new Record(42, repeat(9, 0x55)))).size());
+    }
+    
+    @Test
+    public void generatedRecordsAreNeverLarger() throws IOException
+    {
+        Random random = new Random(35);
+        for(int round = 0; round < 200; round++)
+        {
+            byte[] rom = rom(random);
+            List<Record> records = new ArrayList<>();
+            int offset = random.nextInt(4);
+            while(offset < ROM_SIZE + 8)
+            {
+                byte[] data = new byte[1 + random.nextInt(16)];
+                for(int index = 0; index < data.length; index++)
+                {
+                    //few values, so runs of equal bytes are common
+                    data[index] = (byte) random.nextInt(3);
+                }
+                records.add(new Record(offset, data));
+                offset += data.length + 1 + random.nextInt(7);
+            }
+            assertBridged(rom, records);
+        }
+    }
+    
+    /**
+     * 
+     * @return the bridged records, after checking their size, the image 
+     * they make and that the records given are left as they were.
+     */
+    private static List<Record> assertBridged(byte[] rom, List<Record> records) throws IOException
+    {
+        byte[] unbridgedPatch = write(records);
+        List<Record> bridged = new GapBridger(ByteBuffer.wrap(rom)).bridge(records);
+        assertArrayEquals("The records were changed by bridging.", unbridgedPatch, write(records));
+        byte[] bridgedPatch = write(bridged);
+        assertTrue(bridgedPatch.length + " > " + unbridgedPatch.length, bridgedPatch.length <= unbridgedPatch.length);
+        assertArrayEquals(apply(rom, unbridgedPatch), apply(rom, bridgedPatch));
+        return bridged;
+    }
+    
+    private static byte[] write(List<Record> records) throws IOException
+    {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        try(IpsWriter writer = IpsWriter.open(Channels.newChannel(patch), ByteBuffer.allocate(IpsWriter.BUFFER_SIZE)))
+        {
+            RecordEmitter emitter = new RecordEmitter(writer);
+            for(Record record : records)
+            {
+                emitter.emit(record);
+            }
+            writer.commit();
+        }
+        return patch.toByteArray();
+    }
+    
+    private static byte[] apply(byte[] rom, byte[] patch) throws IOException
+    {
+        File base = File.createTempFile("base", ".rom");
+        base.deleteOnExit();
+        Files.write(base.toPath(), rom);
+        File file = File.createTempFile("patch", ".ips");
+        file.deleteOnExit();
+        Files.write(file.toPath(), patch);
+        IpsApplier.apply(base, file, base);
+        return Files.readAllBytes(base.toPath());
+    }
+    
+    private static List<Record> records(Record... records)
+    {
+        return Arrays.asList(records);
+    }
+    
+    private static byte[] rom(Random random)
+    {
+        byte[] rom = new byte[ROM_SIZE];
+        random.nextBytes(rom);
+        return rom;
+    }
+    
+    private static byte[] counting(int first, int length)
+    {
+        byte[] data = new byte[length];
+        for(int index = 0; index < length; index++)
+        {
+            data[index] = (byte) (first + index);
+        }
+        return data;
+    }
+    
+    private static byte[] repeat(int count, int value)
+    {
+        byte[] data = new byte[count];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+    
+}
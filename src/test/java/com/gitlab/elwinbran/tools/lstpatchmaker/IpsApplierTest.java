@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static com.gitlab.elwinbran.tools.lstpatchmaker.Patches.patch;
+import static com.gitlab.elwinbran.tools.lstpatchmaker.Patches.record;
+import static com.gitlab.elwinbran.tools.lstpatchmaker.Patches.rle;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Applies patches built byte by byte to small base files and compares the 
+ * output with the expected bytes.
+ * 
+ * @author Elwin Slokker
+ */
+public class IpsApplierTest
+{
+    private static final byte[] BASE = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+    
+    private static final byte[] OLD_OUTPUT = {42, 42, 42};
+    
+    @Test
+    public void plainRecordsAreApplied() throws IOException
+    {
+        byte[] expected = BASE.clone();
+        expected[2] = 0x20;
+        expected[3] = 0x30;
+        expected[15] = 0x70;
+        assertArrayEquals(expected, apply(patch(record(2, 0x20, 0x30), record(15, 0x70))));
+    }
+    
+    @Test
+    public void rleRecordsAreApplied() throws IOException
+    {
+        byte[] expected = BASE.clone();
+        Arrays.fill(expected, 4, 10, (byte) 0x55);
+        expected[11] = 0x11;
+        assertArrayEquals(expected, apply(patch(rle(4, 6, 0x55), record(11, 0x11))));
+    }
+    
+    @Test
+    public void recordsGrowTheOutputPastTheBase() throws IOException
+    {
+        byte[] expected = Arrays.copyOf(BASE, 26);
+        expected[20] = 0x20;
+        Arrays.fill(expected, 22, 26, (byte) 0x33);
+        assertArrayEquals(expected, apply(patch(record(20, 0x20), rle(22, 4, 0x33))));
+    }
+    
+    @Test
+    public void truncationSizeAfterEofIsHonoured() throws IOException
+    {
+        byte[] patch = patch(record(1, 0x10));
+        patch = Arrays.copyOf(patch, patch.length + 3);
+        patch[patch.length - 1] = 6;
+        byte[] expected = Arrays.copyOf(BASE, 6);
+        expected[1] = 0x10;
+        assertArrayEquals(expected, apply(patch));
+    }
+    
+    @Test
+    public void baseCanBePatchedInPlace() throws IOException
+    {
+        File base = write("base", BASE);
+        IpsApplier.apply(base, write("patch", patch(record(0, 0x7F), rle(8, 2, 0x01))), base);
+        byte[] expected = BASE.clone();
+        expected[0] = 0x7F;
+        expected[8] = 0x01;
+        expected[9] = 0x01;
+        assertArrayEquals(expected, Files.readAllBytes(base.toPath()));
+    }
+    
+    @Test
+    public void patchWithoutHeaderLeavesOutputAlone() throws IOException
+    {
+        byte[] patch = patch(record(2, 0x20));
+        patch[0] = 'X';
+        assertRefused(patch);
+    }
+    
+    @Test
+    public void truncatedRecordLeavesOutputAlone() throws IOException
+    {
+        byte[] patch = patch(record(2, 0x20, 0x30, 0x40));
+        //cut inside the data, the end marker goes as well
+        assertRefused(Arrays.copyOf(patch, patch.length - 5));
+        //cut inside the header of the record
+        assertRefused(Arrays.copyOf(patch, 5 + 4));
+    }
+    
+    @Test
+    public void patchWithoutEofLeavesOutputAlone() throws IOException
+    {
+        byte[] patch = patch(record(2, 0x20));
+        assertRefused(Arrays.copyOf(patch, patch.length - 3));
+    }
+    
+    private static byte[] apply(byte[] patch) throws IOException
+    {
+        File output = write("output", OLD_OUTPUT);
+        IpsApplier.apply(write("base", BASE), write("patch", patch), output);
+        return Files.readAllBytes(output.toPath());
+    }
+    
+    /**
+     * Applies an invalid patch, neither an existing output nor a missing 
+     * one may be touched.
+     */
+    private static void assertRefused(byte[] patch) throws IOException
+    {
+        File base = write("base", BASE);
+        File file = write("patch", patch);
+        File output = write("output", OLD_OUTPUT);
+        try
+        {
+            IpsApplier.apply(base, file, output);
+            fail("An invalid patch was applied.");
+        }
+        catch(IOException ex)
+        {
+            assertArrayEquals(OLD_OUTPUT, Files.readAllBytes(output.toPath()));
+        }
+        File missing = new File(output.getPath() + ".new");
+        try
+        {
+            IpsApplier.apply(base, file, missing);
+            fail("An invalid patch was applied.");
+        }
+        catch(IOException ex)
+        {
+            assertFalse(missing.exists());
+        }
+        assertArrayEquals(BASE, Files.readAllBytes(base.toPath()));
+    }
+    
+    private static File write(String prefix, byte[] content) throws IOException
+    {
+        File file = File.createTempFile(prefix, ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+    
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static com.gitlab.elwinbran.tools.lstpatchmaker.Patches.patch;
+import static com.gitlab.elwinbran.tools.lstpatchmaker.Patches.record;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Combines small listings into one patch and checks the merged records and 
+ * the reported collisions.
+ * 
+ * @author Elwin Slokker
+ */
+public class OverlayConversionTest
+{
+    @Test
+    public void touchingChangesOfDifferentListingsShareARecord() throws IOException
+    {
+        List<File> targets = new ArrayList<>();
+        targets.add(listing("first", "0000 AABB\n0010 DD\n"));
+        targets.add(listing("second", "0002 CC\n0011 EE\n"));
+        targets.add(listing("third", "0020 FF\n000F 99\n"));
+        File destination = destination(targets.get(0));
+        StringBuilder messages = new StringBuilder();
+        assertTrue(messages.toString(), OverlayConversion.convert(targets, destination, messages::append));
+        assertArrayEquals(patch(record(0x0000, 0xAA, 0xBB, 0xCC), record(0x000F, 0x99, 0xDD, 0xEE), record(0x0020, 0xFF)), 
+                Files.readAllBytes(destination.toPath()));
+    }
+    
+    @Test
+    public void everyCollisionIsReported() throws IOException
+    {
+        List<File> targets = new ArrayList<>();
+        targets.add(listing("first", "0000 00010203040506070809\n"));
+        targets.add(listing("second", "0002 AAAA\n"));
+        targets.add(listing("third", "0003 BBBB\n"));
+        File destination = destination(targets.get(0));
+        StringBuilder messages = new StringBuilder();
+        assertFalse(OverlayConversion.convert(targets, destination, messages::append));
+        assertFalse(destination.exists());
+        String report = messages.toString();
+        assertEquals(report, 3, report.split("overlaps", -1).length - 1);
+        assertTrue(report, report.contains("0x000002 up to 0x000003 in '" + targets.get(1) + "' overlaps the change at 0x000000 up to 0x000009 in '" + targets.get(0) + "'"));
+        assertTrue(report, report.contains("0x000003 up to 0x000004 in '" + targets.get(2) + "' overlaps the change at 0x000000 up to 0x000009 in '" + targets.get(0) + "'"));
+        assertTrue(report, report.contains("0x000003 up to 0x000004 in '" + targets.get(2) + "' overlaps the change at 0x000002 up to 0x000003 in '" + targets.get(1) + "'"));
+    }
+    
+    @Test
+    public void touchingChangesDoNotCollide() throws IOException
+    {
+        List<File> targets = new ArrayList<>();
+        targets.add(listing("first", "0000 0001\n"));
+        targets.add(listing("second", "0002 02\n"));
+        File destination = destination(targets.get(0));
+        StringBuilder messages = new StringBuilder();
+        assertTrue(messages.toString(), OverlayConversion.convert(targets, destination, messages::append));
+        assertArrayEquals(patch(record(0x0000, 0x00, 0x01, 0x02)), Files.readAllBytes(destination.toPath()));
+    }
+    
+    private static File listing(String prefix, String listing) throws IOException
+    {
+        File file = File.createTempFile(prefix, ".lst");
+        file.deleteOnExit();
+        Files.write(file.toPath(), listing.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+    
+    private static File destination(File target)
+    {
+        File destination = new File(target.getPath() + ".ips");
+        destination.deleteOnExit();
+        return destination;
+    }
+    
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scans the same listings with a single {@link LstScanner} and with a 
+ * {@link ParallelScanner} cut into small chunks, which have to hand the 
+ * same changes to their sink and fail on the same line.
+ * 
+ * @author Elwin Slokker
+ */
+public class ParallelScannerTest
+{
+    private static final String[] LINE_ENDS = {"\n", "\r\n", "\r"};
+    
+    @Test
+    public void generatedListingIsScannedTheSame() throws IOException
+    {
+        String listing = generate(new Random(20), 400, "\r\n");
+        assertSameScan(listing, 64, 4);
+        assertSameScan(listing, 1000, 4);
+    }
+    
+    @Test
+    public void mixedLineEndsAreScannedTheSame() throws IOException
+    {
+        String listing = generate(new Random(21), 400, null);
+        assertSameScan(listing, 64, 4);
+        assertSameScan(listing, 64, 1);
+    }
+    
+    @Test
+    public void crlfOnEveryChunkEdge() throws IOException
+    {
+        String listing = "0010 AABB\r\n0012 CC\r\n\r\n0013 DDEEFF\r\n; end\r\n";
+        //every chunk size puts the edge somewhere else, once between CR and LF
+        for(int chunkSize = 1; chunkSize <= listing.length(); chunkSize++)
+        {
+            assertSameScan(listing, chunkSize, 4);
+        }
+    }
+    
+    @Test
+    public void crlfSplitAcrossChunksIsOneLineEnd() throws IOException
+    {
+        String listing = "0010 AA\r\n0011 BB\r\n";
+        //the first chunk ends right on the CR
+        Scan scan = parallel(listing, 8, 4);
+        assertEquals(2, scan.lines);
+        assertEquals("000010:AA 000011:BB", scan.changes());
+    }
+    
+    @Test
+    public void lineLongerThanAChunk() throws IOException
+    {
+        StringBuilder data = new StringBuilder();
+        for(int index = 0; index < 300; index++)
+        {
+            data.append(String.format("%02X", index & 0xFF));
+        }
+        String listing = "0100 11\n0200 " + data + "    DB  table\r\n0400 22\n";
+        assertSameScan(listing, 16, 4);
+        assertSameScan(listing, 16, 1);
+        Scan scan = parallel(listing, 16, 4);
+        assertEquals(3, scan.lines);
+        assertEquals(3, scan.changes.size());
+    }
+    
+    @Test
+    public void errorLineNumbersCountFromTheStartOfTheFile() throws IOException
+    {
+        StringBuilder listing = new StringBuilder(generate(new Random(22), 300, null));
+        listing.append("0123 ABC\n");
+        listing.append(generate(new Random(23), 100, "\r\n"));
+        //only the first error is reported
+        listing.append("0456\n");
+        for(int chunkSize : new int[] {1, 7, 64, 4096})
+        {
+            Scan expected = sequential(listing.toString());
+            Scan actual = parallel(listing.toString(), chunkSize, 4);
+            assertTrue(expected.failure, expected.failure.startsWith("Line "));
+            assertTrue(expected.failure, expected.failure.contains("'0123'"));
+            assertEquals(expected.failure, actual.failure);
+            assertEquals(expected.changes, actual.changes);
+            assertEquals(expected.lines, actual.lines);
+        }
+    }
+    
+    @Test
+    public void errorOnTheLastLine() throws IOException
+    {
+        String listing = generate(new Random(24), 200, "\n") + "1234567 AA";
+        assertSameScan(listing, 64, 4);
+        Scan scan = sequential(listing);
+        assertEquals("Line " + scan.lines + ": A change offset cannot exceed 3 bytes, or 24 bits; the read string '1234567' exceeds 6 characters.", 
+                scan.failure);
+    }
+    
+    private static void assertSameScan(String listing, int chunkSize, int parallelism) throws IOException
+    {
+        Scan expected = sequential(listing);
+        Scan actual = parallel(listing, chunkSize, parallelism);
+        String context = "chunk size " + chunkSize + ", parallelism " + parallelism;
+        assertEquals(context, expected.changes, actual.changes);
+        assertEquals(context, expected.failure, actual.failure);
+        assertEquals(context, expected.lines, actual.lines);
+    }
+    
+    private static Scan sequential(String listing) throws IOException
+    {
+        Scan scan = new Scan();
+        LstScanner scanner = new LstScanner(scan);
+        try
+        {
+            scanner.scan(write(listing));
+        }
+        catch(ListingException ex)
+        {
+            scan.failure = ex.getMessage();
+        }
+        scan.lines = scanner.lines();
+        return scan;
+    }
+    
+    private static Scan parallel(String listing, int chunkSize, int parallelism) throws IOException
+    {
+        Scan scan = new Scan();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try
+        {
+            ParallelScanner scanner = new ParallelScanner(scan, ConversionProgress.NONE, chunkSize, pool);
+            try
+            {
+                scanner.scan(write(listing));
+            }
+            catch(ListingException ex)
+            {
+                scan.failure = ex.getMessage();
+            }
+            scan.lines = scanner.lines();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        return scan;
+    }
+    
+    private static File write(String listing) throws IOException
+    {
+        File file = File.createTempFile("listing", ".lst");
+        file.deleteOnExit();
+        Files.write(file.toPath(), listing.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+    
+    /**
+     * 
+     * @param lineEnd ends every line, null to pick one at random per line.
+     * @return a listing with changes, comments and blank lines, like an 
+     * assembler produces.
+     */
+    private static String generate(Random random, int lines, String lineEnd)
+    {
+        StringBuilder listing = new StringBuilder();
+        int offset = 0x100;
+        for(int line = 0; line < lines; line++)
+        {
+            int kind = random.nextInt(10);
+            if(kind == 0)
+            {
+                listing.append("; comment ").append(line);
+            }
+            else if(kind != 1)
+            {
+                int length = 1 + random.nextInt(kind == 2 ? 40 : 4);
+                listing.append(String.format("%04X ", offset));
+                for(int index = 0; index < length; index++)
+                {
+                    listing.append(String.format("%02X", random.nextInt(256)));
+                }
+                listing.append("    MOV A,#").append(line % 7);
+                offset += length + random.nextInt(3);
+            }
+            listing.append(lineEnd != null ? lineEnd : LINE_ENDS[random.nextInt(LINE_ENDS.length)]);
+        }
+        return listing.toString();
+    }
+    
+    /**
+     * The changes a scanner handed over, in order.
+     */
+    private static class Scan implements ChangeSink
+    {
+        private final List<String> changes = new ArrayList<>();
+        
+        private String failure;
+        
+        private int lines;
+        
+        @Override
+        public void change(int offset, byte[] data)
+        {
+            StringBuilder change = new StringBuilder(String.format("%06X:", offset));
+            for(byte value : data)
+            {
+                change.append(String.format("%02X", value));
+            }
+            changes.add(change.toString());
+        }
+        
+        String changes()
+        {
+            return String.join(" ", changes);
+        }
+    }
+    
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds IPS patches byte by byte, independent of {@link IpsWriter}, for 
+ * the tests to compare with or to apply.
+ * 
+ * @author Elwin Slokker
+ */
+final class Patches
+{
+    private Patches()
+    {
+    }
+    
+    /**
+     * 
+     * @return a plain record holding the given bytes.
+     */
+    static byte[] record(int offset, int... data)
+    {
+        byte[] record = new byte[5 + data.length];
+        record[0] = (byte) (offset >>> 16);
+        record[1] = (byte) (offset >>> 8);
+        record[2] = (byte) offset;
+        record[3] = (byte) (data.length >>> 8);
+        record[4] = (byte) data.length;
+        for(int index = 0; index < data.length; index++)
+        {
+            record[5 + index] = (byte) data[index];
+        }
+        return record;
+    }
+    
+    /**
+     * 
+     * @return a RLE record repeating the value count times.
+     */
+    static byte[] rle(int offset, int count, int value)
+    {
+        return new byte[] {(byte) (offset >>> 16), (byte) (offset >>> 8), (byte) offset, 0, 0, 
+            (byte) (count >>> 8), (byte) count, (byte) value};
+    }
+    
+    /**
+     * 
+     * @return the header, the records in the given order and the end marker.
+     */
+    static byte[] patch(byte[]... records)
+    {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        byte[] header = "PATCH".getBytes(StandardCharsets.US_ASCII);
+        patch.write(header, 0, header.length);
+        for(byte[] record : records)
+        {
+            patch.write(record, 0, record.length);
+        }
+        byte[] end = "EOF".getBytes(StandardCharsets.US_ASCII);
+        patch.write(end, 0, end.length);
+        return patch.toByteArray();
+    }
+}
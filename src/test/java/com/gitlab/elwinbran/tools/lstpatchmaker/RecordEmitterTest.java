@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2020 Elwin Slokker
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.gitlab.elwinbran.tools.lstpatchmaker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the break-even lengths of run-length encoding, the splitting of 
+ * long runs and that no record starts at {@link IpsWriter#EOF_OFFSET}.
+ * 
+ * @author Elwin Slokker
+ */
+public class RecordEmitterTest
+{
+    private static final byte REPEATED = 0x55;
+    
+    @Test
+    public void lonelyRepeatOfThreeStaysLiteral() throws IOException
+    {
+        assertEquals("L3", emit(0x100, repeat(3)));
+    }
+    
+    @Test
+    public void lonelyRepeatOfFourIsEncoded() throws IOException
+    {
+        assertEquals("R4", emit(0x100, repeat(4)));
+    }
+    
+    @Test
+    public void repeatAfterChangesNeedsMoreThanEight() throws IOException
+    {
+        assertEquals("L10", emit(0x100, join(distinct(2), repeat(8))));
+        assertEquals("L2 R9", emit(0x100, join(distinct(2), repeat(9))));
+    }
+    
+    @Test
+    public void repeatBeforeChangesNeedsMoreThanEight() throws IOException
+    {
+        assertEquals("L10", emit(0x100, join(repeat(8), distinct(2))));
+        assertEquals("R9 L2", emit(0x100, join(repeat(9), distinct(2))));
+    }
+    
+    @Test
+    public void repeatBetweenChangesNeedsMoreThanThirteen() throws IOException
+    {
+        assertEquals("L15", emit(0x100, join(distinct(1), repeat(13), distinct(1))));
+        assertEquals("L1 R14 L1", emit(0x100, join(distinct(1), repeat(14), distinct(1))));
+    }
+    
+    @Test
+    public void fullRecordIsNotSplit() throws IOException
+    {
+        assertEquals("L65535", emit(0, distinct(IpsWriter.MAXIMUM_RECORD_SIZE)));
+    }
+    
+    @Test
+    public void longRunIsSplitAtFullRecords() throws IOException
+    {
+        Recorder recorder = new Recorder();
+        byte[] data = distinct(2 * IpsWriter.MAXIMUM_RECORD_SIZE + 1);
+        new RecordEmitter(recorder).emit(0, data, 0, data.length);
+        assertEquals("L65535 L65535 L1", recorder.toString());
+        assertEquals(IpsWriter.MAXIMUM_RECORD_SIZE, recorder.offsets.get(1).intValue());
+        assertEquals(2 * IpsWriter.MAXIMUM_RECORD_SIZE, recorder.offsets.get(2).intValue());
+        assertArrayEquals(data, recorder.patched(0, data.length));
+    }
+    
+    @Test
+    public void longRepeatIsSplitAtFullRecords() throws IOException
+    {
+        assertEquals("R65535 R1", emit(0, repeat(IpsWriter.MAXIMUM_RECORD_SIZE + 1)));
+    }
+    
+    @Test
+    public void splitDoesNotLandOnEof() throws IOException
+    {
+        int offset = IpsWriter.EOF_OFFSET - IpsWriter.MAXIMUM_RECORD_SIZE;
+        assertEquals("L65534 L2", emit(offset, distinct(IpsWriter.MAXIMUM_RECORD_SIZE + 1)));
+        assertEquals("R65534 R2", emit(offset, repeat(IpsWriter.MAXIMUM_RECORD_SIZE + 1)));
+    }
+    
+    @Test
+    public void repeatEndingAtEofLeavesItsLastByte() throws IOException
+    {
+        //the changes after the repeat would start at EOF
+        assertEquals("R9 L2", emit(IpsWriter.EOF_OFFSET - 10, join(repeat(10), distinct(1))));
+        assertEquals("L10", emit(IpsWriter.EOF_OFFSET - 9, join(repeat(9), distinct(1))));
+    }
+    
+    @Test
+    public void repeatStartingAtEofIsNotEncoded() throws IOException
+    {
+        assertEquals("L10", emit(IpsWriter.EOF_OFFSET - 1, join(distinct(1), repeat(9))));
+        assertEquals("L1 R9", emit(IpsWriter.EOF_OFFSET - 2, join(distinct(1), repeat(9))));
+    }
+    
+    @Test
+    public void runsAroundEofAreRecreated() throws IOException
+    {
+        for(int start = IpsWriter.EOF_OFFSET - 20; start < IpsWriter.EOF_OFFSET; start++)
+        {
+            for(int length = 1; length < 40; length++)
+            {
+                byte[] data = join(distinct(2), repeat(length), distinct(2));
+                Recorder recorder = new Recorder();
+                new RecordEmitter(recorder).emit(start, data, 0, data.length);
+                assertTrue(recorder.toString(), !recorder.offsets.contains(IpsWriter.EOF_OFFSET));
+                assertArrayEquals(data, recorder.patched(start, data.length));
+            }
+        }
+    }
+    
+    @Test
+    public void countsRecordsAndRepeats() throws IOException
+    {
+        RecordEmitter emitter = new RecordEmitter(new Recorder());
+        byte[] data = join(distinct(1), repeat(14), distinct(1));
+        emitter.emit(0x100, data, 0, data.length);
+        assertEquals(3, emitter.records());
+        assertEquals(1, emitter.repeats());
+    }
+    
+    private static String emit(int offset, byte[] data) throws IOException
+    {
+        Recorder recorder = new Recorder();
+        new RecordEmitter(recorder).emit(offset, data, 0, data.length);
+        assertArrayEquals(data, recorder.patched(offset, data.length));
+        return recorder.toString();
+    }
+    
+    private static byte[] repeat(int length)
+    {
+        byte[] data = new byte[length];
+        Arrays.fill(data, REPEATED);
+        return data;
+    }
+    
+    /**
+     * 
+     * @return bytes of which no two neighbours are equal, nor equal to the 
+     * repeated byte.
+     */
+    private static byte[] distinct(int length)
+    {
+        byte[] data = new byte[length];
+        for(int index = 0; index < length; index++)
+        {
+            data[index] = (byte) (index % 2 == 0 ? 0x11 : 0x22);
+        }
+        return data;
+    }
+    
+    private static byte[] join(byte[]... parts)
+    {
+        int length = 0;
+        for(byte[] part : parts)
+        {
+            length += part.length;
+        }
+        byte[] data = new byte[length];
+        int index = 0;
+        for(byte[] part : parts)
+        {
+            System.arraycopy(part, 0, data, index, part.length);
+            index += part.length;
+        }
+        return data;
+    }
+    
+    /**
+     * Writes the records down as "L" for literal and "R" for run-length 
+     * encoded records followed by their size, and applies them to a copy of 
+     * the patched area.
+     */
+    private static class Recorder implements RecordSink
+    {
+        private final List<String> records = new ArrayList<>();
+        
+        private final List<Integer> offsets = new ArrayList<>();
+        
+        private final List<byte[]> contents = new ArrayList<>();
+        
+        @Override
+        public void write(int offset, byte[] data, int from, int length)
+        {
+            assertTrue(length >= 1 && length <= IpsWriter.MAXIMUM_RECORD_SIZE);
+            records.add("L" + length);
+            offsets.add(offset);
+            contents.add(Arrays.copyOfRange(data, from, from + length));
+        }
+        
+        @Override
+        public void writeRepeat(int offset, int count, byte value)
+        {
+            assertTrue(count >= 1 && count <= IpsWriter.MAXIMUM_RECORD_SIZE);
+            records.add("R" + count);
+            offsets.add(offset);
+            byte[] data = new byte[count];
+            Arrays.fill(data, value);
+            contents.add(data);
+        }
+        
+        /**
+         * 
+         * @return the area from the offset on after applying every record, 
+         * which have to follow each other without gaps.
+         */
+        byte[] patched(int offset, int length)
+        {
+            byte[] area = new byte[length];
+            int next = offset;
+            for(int index = 0; index < offsets.size(); index++)
+            {
+                assertEquals(next, offsets.get(index).intValue());
+                byte[] data = contents.get(index);
+                System.arraycopy(data, 0, area, next - offset, data.length);
+                next += data.length;
+            }
+            assertEquals(offset + length, next);
+            return area;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return String.join(" ", records);
+        }
+    }
+    
+}